@@ -0,0 +1,74 @@
+#!/bin/sh
+# Startup benchmark : time to first response and RSS of each variant
+#   jar    : java -jar target/dai-work-3-1.0-SNAPSHOT.jar       (mvn package)
+#   cds    : same JAR with the class-data archive target/api.jsa (mvn -Pappcds package)
+#   native : target/api                                           (mvn -Pnative package)
+# usage : scripts/startup-bench.sh [runs] [port]
+
+RUNS=${1:-5}
+PORT=${2:-18081}
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+JAR="$ROOT/target/dai-work-3-1.0-SNAPSHOT.jar"
+JAVA=${JAVA_HOME:+$JAVA_HOME/bin/}java
+
+# the API reads its JSON files relative to the working directory, use a copy
+WORKDIR=$(mktemp -d)
+trap 'rm -rf "$WORKDIR"' EXIT
+mkdir -p "$WORKDIR/src/main/java/ch/heigvd"
+
+now_ms() {
+    date +%s%3N
+}
+
+bench() {
+    name=$1
+    shift
+
+    total_ms=0
+    total_rss=0
+    for i in $(seq 1 "$RUNS"); do
+        rm -rf "$WORKDIR/src/main/java/ch/heigvd/datas"
+        cp -r "$ROOT/src/main/java/ch/heigvd/datas" "$WORKDIR/src/main/java/ch/heigvd/"
+
+        start=$(now_ms)
+        (cd "$WORKDIR" && AIRAPI_PORT=$PORT exec "$@" > /dev/null 2>&1) &
+        pid=$!
+
+        until curl -s -o /dev/null "http://localhost:$PORT/avions"; do
+            if ! kill -0 "$pid" 2> /dev/null; then
+                echo "$name : process exited before the first response"
+                return
+            fi
+            sleep 0.005
+        done
+        end=$(now_ms)
+
+        rss=$(awk '/VmRSS/ { print $2 }' "/proc/$pid/status")
+        kill "$pid"
+        wait "$pid" 2> /dev/null
+
+        echo "$name run $i : first response $((end - start)) ms, RSS $((rss / 1024)) MB"
+        total_ms=$((total_ms + end - start))
+        total_rss=$((total_rss + rss))
+    done
+
+    echo "$name average : first response $((total_ms / RUNS)) ms, RSS $((total_rss / RUNS / 1024)) MB"
+}
+
+if [ -f "$JAR" ]; then
+    bench jar "$JAVA" -jar "$JAR"
+else
+    echo "jar : $JAR missing, run mvn package"
+fi
+
+if [ -f "$ROOT/target/api.jsa" ]; then
+    bench cds "$JAVA" -XX:SharedArchiveFile="$ROOT/target/api.jsa" -jar "$JAR"
+else
+    echo "cds : target/api.jsa missing, run mvn -Pappcds package"
+fi
+
+if [ -x "$ROOT/target/api" ]; then
+    bench native "$ROOT/target/api"
+else
+    echo "native : target/api missing, run mvn -Pnative package"
+fi
@@ -0,0 +1,29 @@
+package ch.heigvd;
+
+// deployment settings : system property first, then environment variable, then default
+public final class Config {
+    private Config() {}
+
+    public static String get(String name, String defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null || value.isBlank()) value = System.getenv(name);
+        return (value == null || value.isBlank()) ? defaultValue : value.trim();
+    }
+
+    public static long getLong(String name, long defaultValue) {
+        try {
+            return Long.parseLong(get(name, Long.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + name + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        return Boolean.parseBoolean(get(name, Boolean.toString(defaultValue)));
+    }
+}
@@ -2,14 +2,22 @@ package ch.heigvd;
 
 import ch.heigvd.controller.AirplaneController;
 import ch.heigvd.controller.CompanyController;
+import ch.heigvd.controller.MetricsController;
+import ch.heigvd.controller.SearchController;
+import ch.heigvd.persistence.WriteBehind;
+import ch.heigvd.profiling.Profiler;
 import io.javalin.Javalin;
 
 public class Main {
-    public static final int PORT = 8080;
+    public static final int PORT = Config.getInt("AIRAPI_PORT", 8080);
 
     public static void main(String[] args) {
         Javalin app = Javalin.create();
 
+        // phase breakdown : JFR events, Server-Timing header, slow request log
+        app.before(Profiler::begin);
+        app.after(Profiler::end);
+
         app.get("/avions", AirplaneController::getAvions);
         app.post("/avions", AirplaneController::postAvion);
         app.delete("/avions", AirplaneController::deleteAvion);
@@ -21,7 +29,25 @@ public class Main {
 
         app.put("/company/{cmpICAO}/buy", CompanyController::addAircraft);
         app.put("/company/{cmpICAO}/sell", CompanyController::sellAircraft);
+        app.get("/company/{cmpICAO}/fleet", CompanyController::getFleet);
+
+        app.get("/search", SearchController::getSearch);
+
+        app.get("/metrics", MetricsController::getMetrics);
+
+        // write the last pending changes before the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(WriteBehind::drain, "write-behind-drain"));
+
+        AirplaneController.loadCatalog();
+        SearchController.init();
 
         app.start(PORT);
+
+        // build time only : warm the classes up then exit (see TrainingRun)
+        if (Config.getBoolean("AIRAPI_TRAINING_RUN", false)) {
+            TrainingRun.run(PORT);
+            app.stop();
+            System.exit(0);
+        }
     }
 }
\ No newline at end of file
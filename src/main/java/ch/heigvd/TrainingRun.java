@@ -0,0 +1,119 @@
+package ch.heigvd;
+
+import ch.heigvd.history.FleetHistories;
+import ch.heigvd.store.CompanyShard;
+import ch.heigvd.store.CompanyStore;
+import ch.heigvd.types.FleetHistoryFileJSON;
+import ch.heigvd.types.FleetHistoryJSON;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Brief :
+ * exercise the read endpoints once, used with AIRAPI_TRAINING_RUN=true by the
+ * appcds profile (class-data archive dumped at exit) and by the native profile
+ * (native-image agent records the reflection metadata of the JSON types).
+ *  only GET requests, the JSON files are never modified
+ *  every endpoint and query parameter using a JSON type, a mix-in or a virtual
+ *  property must be listed here, otherwise it fails in the native executable
+ **/
+public final class TrainingRun {
+    private TrainingRun() {}
+
+    private static final List<String> REQUESTS = List.of(
+            "/avions",
+            "/avions?sort=range&sort=-icao&constructor=airbus&capacity=100",
+            "/company",
+            "/company?sort=-fleetSize&sort=name&fleetSize=1",
+            "/avions?fields=ICAO,range&sort=range",
+            "/company?fields=companyICAO,fleet,fleetSize,fleetTypes&sort=name",
+            "/search?q=air",
+            "/metrics"
+    );
+
+    public static void run(int port) {
+        HttpClient client = HttpClient.newHttpClient();
+
+        List<String> requests = new ArrayList<>(REQUESTS);
+        String companyICAO = anyCompany();
+        if (companyICAO != null) requests.add("/company/" + companyICAO + "/fleet");
+
+        histories();
+
+        for (String path : requests) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + path)).GET().build();
+            try {
+                HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                System.out.println("Training " + path + " : " + response.statusCode());
+            } catch (IOException e) {
+                System.err.println("Training " + path + " failed : " + e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static String anyCompany() {
+        for (CompanyShard shard : CompanyStore.shards()) {
+            shard.lock.lock();
+            try {
+                if (!shard.companies().isEmpty()) return shard.companies().get(0).companyICAO;
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return null;
+    }
+
+    // a start with history files : written and read back from temp files, not from the data dir
+    private static void histories() {
+        CompanyShard shard = CompanyStore.shards().get(0);
+        FleetHistoryFileJSON snapshot;
+        shard.lock.lock();
+        try {
+            snapshot = shard.history().snapshot();
+        } finally {
+            shard.lock.unlock();
+        }
+
+        // one log line after the snapshot, a change of 0 aircraft
+        FleetHistoryJSON.Entry entry = new FleetHistoryJSON.Entry();
+        entry.sequence = snapshot.sequence + 1;
+        entry.companyICAO = "TRAINING";
+        entry.at = System.currentTimeMillis();
+        entry.event = "fleet";
+        entry.aircraftICAO = "TRAINING";
+        entry.delta = 0;
+
+        try {
+            Path dir = Files.createTempDirectory("company-history");
+            Path snapshotPath = dir.resolve("company-history.json");
+            Path logPath = dir.resolve("company-history.log");
+            try {
+                ObjectMapper mapper = new ObjectMapper();
+                Files.write(snapshotPath, mapper.writeValueAsBytes(snapshot));
+                Files.write(logPath, (mapper.writeValueAsString(entry) + "\n").getBytes(StandardCharsets.UTF_8));
+
+                FleetHistories.Loaded loaded = FleetHistories.read(snapshotPath.toString(), logPath.toString());
+                System.out.println("Training history files : " + loaded.histories().size() + " histories");
+            } finally {
+                Files.deleteIfExists(snapshotPath);
+                Files.deleteIfExists(logPath);
+                Files.deleteIfExists(dir);
+            }
+        } catch (IOException e) {
+            System.err.println("Training history files failed : " + e);
+        }
+    }
+}
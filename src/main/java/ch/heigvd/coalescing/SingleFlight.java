@@ -0,0 +1,140 @@
+package ch.heigvd.coalescing;
+
+import ch.heigvd.Config;
+import ch.heigvd.controller.MutexAPI;
+import ch.heigvd.profiling.Phase;
+import ch.heigvd.profiling.Profiler;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Brief :
+ * coalescing of identical concurrent GET requests. The first request (leader)
+ * computes the response, the duplicates arriving meanwhile wait for it and send
+ * the same bytes.
+ *  key : path + sorted query parameters + data version (a write starts a new flight)
+ *  a waiter stops waiting after AIRAPI_SINGLEFLIGHT_TIMEOUT_MS and computes by itself
+ **/
+public final class SingleFlight {
+    private SingleFlight() {}
+
+    public static final long TIMEOUT_MS = Config.getLong("AIRAPI_SINGLEFLIGHT_TIMEOUT_MS", 1000);
+
+    private static final ObjectWriter WRITER = new ObjectMapper().writer();
+
+    private static final Map<String, CompletableFuture<Response>> IN_FLIGHT = new ConcurrentHashMap<>();
+
+    // metrics
+    private static final AtomicLong LEADERS = new AtomicLong();
+    private static final AtomicLong SHARED = new AtomicLong();
+    private static final AtomicLong TIMEOUTS = new AtomicLong();
+
+    // a computed response, shared as is between the leader and its waiters
+    public record Response(HttpStatus status, String contentType, byte[] body) {
+
+        public static Response json(Object value) {
+            return json(value, WRITER);
+        }
+
+        public static Response json(Object value, ObjectWriter writer) {
+            long start = Profiler.start();
+            try {
+                return new Response(HttpStatus.OK, "application/json", writer.writeValueAsBytes(value));
+            } catch (JsonProcessingException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                Profiler.record(Phase.SERIALIZE, start);
+            }
+        }
+
+        // JSON already serialized
+        public static Response rawJson(byte[] body) {
+            return new Response(HttpStatus.OK, "application/json", body);
+        }
+
+        public static Response text(HttpStatus status, String message) {
+            return new Response(status, "text/plain", message.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    public static void serve(Context ctx, Function<Context, Response> compute) {
+        String key = key(ctx);
+        CompletableFuture<Response> flight = new CompletableFuture<>();
+        CompletableFuture<Response> existing = IN_FLIGHT.putIfAbsent(key, flight);
+
+        Response response;
+        if (existing == null) {
+            // leader
+            LEADERS.incrementAndGet();
+            try {
+                response = compute.apply(ctx);
+                flight.complete(response);
+            } catch (RuntimeException e) {
+                flight.completeExceptionally(e);
+                throw e;
+            } finally {
+                IN_FLIGHT.remove(key, flight);
+            }
+        } else {
+            // duplicate, wait for the leader
+            long start = Profiler.start();
+            try {
+                response = existing.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                SHARED.incrementAndGet();
+            } catch (TimeoutException e) {
+                TIMEOUTS.incrementAndGet();
+                response = compute.apply(ctx);
+            } catch (ExecutionException e) {
+                response = compute.apply(ctx);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                response = compute.apply(ctx);
+            } finally {
+                Profiler.record(Phase.COALESCE, start);
+            }
+        }
+
+        ctx.status(response.status()).contentType(response.contentType()).result(response.body());
+    }
+
+    public static Map<String, Object> metrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("leaders", LEADERS.get());
+        m.put("shared", SHARED.get());
+        m.put("timeouts", TIMEOUTS.get());
+        m.put("inFlight", IN_FLIGHT.size());
+        m.put("timeoutMs", TIMEOUT_MS);
+        return m;
+    }
+
+    // normalized route and query, the order of the values is kept (sort=a&sort=b != sort=b&sort=a)
+    // one encoded pair per value, sort=a,b and sort=a&sort=b are different keys
+    private static String key(Context ctx) {
+        StringBuilder sb = new StringBuilder(ctx.path()).append('?');
+        for (Map.Entry<String, List<String>> param : new TreeMap<>(ctx.queryParamMap()).entrySet()) {
+            String name = URLEncoder.encode(param.getKey(), StandardCharsets.UTF_8);
+            for (String value : param.getValue()) {
+                sb.append(name).append('=').append(URLEncoder.encode(value, StandardCharsets.UTF_8)).append('&');
+            }
+        }
+        return sb.append('#').append(MutexAPI.DATA_VERSION.get()).toString();
+    }
+}
@@ -1,16 +1,28 @@
 package ch.heigvd.controller;
 
 import com.fasterxml.jackson.core.type.TypeReference;
+import ch.heigvd.coalescing.SingleFlight;
+import ch.heigvd.persistence.WriteBehind;
+import ch.heigvd.profiling.Phase;
+import ch.heigvd.profiling.Profiler;
+import ch.heigvd.projection.Projection;
 import ch.heigvd.types.AvionJSON;
-import com.fasterxml.jackson.databind.JsonMappingException;
+import ch.heigvd.views.SortedView;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -21,6 +33,8 @@ public class AirplaneController {
     public static List<AvionJSON> readAvions(String filename) {
         MutexAPI.LOCK.lock();
 
+        long start = Profiler.start();
+
         try {
             ObjectMapper mapper = new ObjectMapper();
 
@@ -36,18 +50,107 @@ public class AirplaneController {
             }
         } finally {
             MutexAPI.LOCK.unlock();
+            Profiler.record(Phase.READ, start);
+        }
+    }
+
+    // in-memory airplanes, loaded once, the file is rewritten by WriteBehind
+    private static List<AvionJSON> avions;
+
+    // presorted airplanes for each sort parameter [constructor | range | icao]
+    private static final Map<String, SortedView<AvionJSON, ?>> VIEWS = Map.of(
+            "constructor", new SortedView<AvionJSON, String>(a -> a.constructor == null ? "" : a.constructor.toLowerCase()),
+            "range", new SortedView<AvionJSON, Integer>(a -> a.range == null ? 0 : a.range),
+            "icao", new SortedView<AvionJSON, String>(a -> a.ICAO == null ? "" : a.ICAO.toLowerCase())
+    );
+
+    // ICAOs of the catalog, read by the company handlers without MutexAPI.LOCK
+    // loaded by loadCatalog before the server starts
+    private static volatile Set<String> catalog;
+    private static volatile Set<String> catalogUpperCase;
+
+    // caller must hold MutexAPI.LOCK
+    public static List<AvionJSON> avions() {
+        if (avions == null) {
+            avions = new ArrayList<>(readAvions(JSON_FILEPATH));
+            avions.forEach(a -> VIEWS.values().forEach(v -> v.add(a)));
+            refreshCatalog();
+        }
+        return avions;
+    }
+
+    // called by Main before the server starts, the company handlers need the catalog
+    public static void loadCatalog() {
+        MutexAPI.LOCK.lock();
+        try {
+            avions();
+        } finally {
+            MutexAPI.LOCK.unlock();
+        }
+    }
+
+    public static boolean inCatalog(String icao) {
+        return catalog.contains(icao);
+    }
+
+    public static boolean inCatalogIgnoreCase(String icao) {
+        return catalogUpperCase.contains(icao.toUpperCase(Locale.ROOT));
+    }
+
+    // caller must hold MutexAPI.LOCK
+    private static void refreshCatalog() {
+        Set<String> icaos = new HashSet<>();
+        Set<String> upper = new HashSet<>();
+        for (AvionJSON a : avions) {
+            icaos.add(a.ICAO);
+            upper.add(a.ICAO.toUpperCase(Locale.ROOT));
         }
+        catalogUpperCase = upper;
+        catalog = icaos;
+    }
+
+    // keep the views, the catalog and the search index up to date, caller must hold MutexAPI.LOCK
+    private static void added(AvionJSON avion) {
+        VIEWS.values().forEach(v -> v.add(avion));
+        refreshCatalog();
+        SearchController.INDEX.putAvion(avion);
+    }
+
+    private static void removed(AvionJSON avion) {
+        VIEWS.values().forEach(v -> v.remove(avion));
+        refreshCatalog();
+        SearchController.INDEX.removeAvion(avion.ICAO);
+    }
+
+    // the new airplane keeps the place of the old one among equal sort keys
+    private static void replaced(AvionJSON oldAvion, AvionJSON newAvion) {
+        VIEWS.values().forEach(v -> v.replace(oldAvion, newAvion));
+        refreshCatalog();
+        SearchController.INDEX.removeAvion(oldAvion.ICAO);
+        SearchController.INDEX.putAvion(newAvion);
+    }
+
+    // caller must hold MutexAPI.LOCK, schedule the rewrite of avion.json
+    public static CompletableFuture<Void> persist() {
+        MutexAPI.DATA_VERSION.incrementAndGet();
+        return WriteBehind.schedule(JSON_FILEPATH, MutexAPI.LOCK, AirplaneController::avions);
     }
 
     //-------------- ENDPOINT FUNCTIONS --------------
 
     public static void getAvions(Context ctx) {
+        SingleFlight.serve(ctx, AirplaneController::listAvions);
+    }
+
+    // filter, sort and serialize, shared by the identical concurrent requests
+    private static SingleFlight.Response listAvions(Context ctx) {
 
         // MUTEX LOCK
         MutexAPI.LOCK.lock();
 
         try {
             List<AvionJSON> list;
+            Predicate<AvionJSON> filter = a -> true;
 
             // filters
             String constructor = ctx.queryParam("constructor");
@@ -57,14 +160,17 @@ public class AirplaneController {
             // sort conditions
             List<String> sorts = ctx.queryParams("sort");
 
-            // fetch data and apply filter as AND condition
-            if (constructor == null) {
-                list = readAvions(JSON_FILEPATH);
-            } else {
-                list = readAvions(JSON_FILEPATH)
-                        .stream()
-                        .filter(a -> constructor.equalsIgnoreCase(a.constructor))
-                        .collect(Collectors.toList());
+            // projection [constructor | ICAO | range | maxCapacity]
+            ObjectWriter writer;
+            try {
+                writer = Projection.AVION.writer(ctx.queryParams("fields"));
+            } catch (IllegalArgumentException e) {
+                return SingleFlight.Response.text(HttpStatus.BAD_REQUEST, "Fields parameters incorrect");
+            }
+
+            // filters applied as AND condition
+            if (constructor != null) {
+                filter = filter.and(a -> constructor.equalsIgnoreCase(a.constructor));
             }
 
             if(!paramCapacity.isEmpty()) {
@@ -74,9 +180,9 @@ public class AirplaneController {
                     int capacity = Integer.parseInt(paramCap);
 
                     if(less) {
-                        list = list.stream().filter(a -> a.maxCapacity <= capacity).collect(Collectors.toList());;
+                        filter = filter.and(a -> a.maxCapacity <= capacity);
                     } else {
-                        list = list.stream().filter(a -> a.maxCapacity >= capacity).collect(Collectors.toList());;
+                        filter = filter.and(a -> a.maxCapacity >= capacity);
                     }
                 }
             }
@@ -87,48 +193,39 @@ public class AirplaneController {
                 int range = Integer.parseInt(paramRange);
 
                 if(less) {
-                    list = list.stream().filter(a -> a.range <= range).collect(Collectors.toList());
+                    filter = filter.and(a -> a.range <= range);
                 } else {
-                    list = list.stream().filter(a -> a.range >= range).collect(Collectors.toList());
+                    filter = filter.and(a -> a.range >= range);
                 }
             }
 
+            // fetch data (also loads the views)
+            List<AvionJSON> all = avions();
+            long start = Profiler.start();
 
-            // SORT
-            if (!sorts.isEmpty()) {
-                Comparator<AvionJSON> comparator = null;
-                Comparator<AvionJSON> c;
+            // SORT : walk of the presorted views
+            if (sorts.isEmpty()) {
+                list = all.stream().filter(filter).collect(Collectors.toList());
+            } else {
+                List<SortedView.Order<AvionJSON>> orders = new ArrayList<>();
 
                 for (String s : sorts) {
                     boolean desc = s.startsWith("-");
                     String field = desc ? s.substring(1) : s;
 
-                    switch (field) {
-                        case "constructor":
-                            c = Comparator.comparing(a -> a.constructor.toLowerCase());
-                            break;
-                        case "range":
-                            c = Comparator.comparingInt(a -> a.range);
-                            break;
-                        case "icao":
-                            c = Comparator.comparing(a -> a.ICAO.toLowerCase());
-                            break;
-                        default:
-                            ctx.status(HttpStatus.BAD_REQUEST).result("Sort parameters incorrect");
-                            return;
+                    SortedView<AvionJSON, ?> view = VIEWS.get(field);
+                    if (view == null) {
+                        return SingleFlight.Response.text(HttpStatus.BAD_REQUEST, "Sort parameters incorrect");
                     }
-
-                    if (desc) c = c.reversed();
-                    comparator = (comparator == null) ? c : comparator.thenComparing(c);
+                    orders.add(new SortedView.Order<>(view, desc));
                 }
 
-                if(comparator != null) {
-                    list.sort(comparator);
-                }
+                list = SortedView.collect(orders, filter);
             }
+            Profiler.record(Phase.FILTER_SORT, start);
 
             // send data
-            ctx.json(list);
+            return SingleFlight.Response.json(list, writer);
         } finally {
             MutexAPI.LOCK.unlock();
         }
@@ -136,13 +233,12 @@ public class AirplaneController {
     }
 
     public static void postAvion(Context ctx) {
+        CompletableFuture<Void> flush;
 
         // MUTEX LOCK
         MutexAPI.LOCK.lock();
 
         try {
-            ObjectMapper mapper = new ObjectMapper();
-
             // parse JSON body -> AvionJSON
             AvionJSON newAvion;
             try {
@@ -163,7 +259,7 @@ public class AirplaneController {
             }
 
             // fetch data
-            List<AvionJSON> avions = readAvions(JSON_FILEPATH);
+            List<AvionJSON> avions = avions();
 
             // check if the ICAO provided is UNIQUE ?
             boolean exists = avions.stream()
@@ -175,32 +271,28 @@ public class AirplaneController {
             }
 
             // add to the list
-            List<AvionJSON> updated = new java.util.ArrayList<>(avions);
-            updated.add(newAvion);
+            avions.add(newAvion);
+            added(newAvion);
 
             // write the avion.json
-            try (Writer writer = new OutputStreamWriter(new FileOutputStream(JSON_FILEPATH), StandardCharsets.UTF_8)) {
-                mapper.writerWithDefaultPrettyPrinter().writeValue(writer, updated);
-            } catch (IOException e) {
-                ctx.status(HttpStatus.INTERNAL_SERVER_ERROR).result("Failed to write JSON file");
-                return;
-            }
+            flush = persist();
 
             // send the airplane added to confirm the process
             ctx.status(HttpStatus.CREATED).json(newAvion);
         } finally {
             MutexAPI.LOCK.unlock();
         }
+
+        WriteBehind.acknowledge(ctx, flush);
     }
 
     public static void deleteAvion(Context ctx) {
+        CompletableFuture<Void> flush;
 
         // MUTEX LOCK
         MutexAPI.LOCK.lock();
 
         try {
-            ObjectMapper mapper = new ObjectMapper();
-
             // read params
             //String icao = ctx.queryParam("icao");
             String constructor = ctx.queryParam("constructor");
@@ -213,28 +305,24 @@ public class AirplaneController {
             }
 
             // fetch current data
-            List<AvionJSON> avions = readAvions(JSON_FILEPATH);
+            List<AvionJSON> avions = avions();
 
             // delete airplanes
             List<AvionJSON> removed = avions.stream().filter(a -> constructor.equalsIgnoreCase(a.constructor)).toList();
 
             avions.removeAll(removed);
+            removed.forEach(AirplaneController::removed);
 
             // update JSON file
-            try (Writer writer = new FileWriter(JSON_FILEPATH, StandardCharsets.UTF_8);
-                 BufferedWriter bw = new BufferedWriter(writer);
-            ) {
-                mapper.writerWithDefaultPrettyPrinter().writeValue(bw, avions);
-            } catch (IOException e) {
-                ctx.status(HttpStatus.INTERNAL_SERVER_ERROR).result("Failed to write JSON file");
-                return;
-            }
+            flush = persist();
 
             // send the removed airplanes
             ctx.json(removed);
         } finally {
             MutexAPI.LOCK.unlock();
         }
+
+        WriteBehind.acknowledge(ctx, flush);
     }
 
     /**
@@ -246,13 +334,14 @@ public class AirplaneController {
      *  ICAO verification d'unicité
      **/
     public static void putAvion(Context ctx) {
+        CompletableFuture<Void> flush;
+        CompletableFuture<Void> companiesFlush = null;
+        boolean renamed = false;
 
         // MUTEX LOCK
         MutexAPI.LOCK.lock();
 
         try {
-            ObjectMapper mapper = new ObjectMapper();
-
             String paramICAO = ctx.queryParam("icao");
 
             if (paramICAO == null) {
@@ -261,7 +350,7 @@ public class AirplaneController {
             }
 
             // fetch data
-            List<AvionJSON> avions = readAvions(JSON_FILEPATH);
+            List<AvionJSON> avions = avions();
             // find requested airplane index (use chatGPT 5.2)
             int index = IntStream.range(0, avions.size())
                     .filter(i -> avions.get(i).ICAO.equalsIgnoreCase(paramICAO))
@@ -292,11 +381,7 @@ public class AirplaneController {
                     ctx.result("An airplane with this ICAO already exists").status(HttpStatus.CONFLICT);
                     return;
                 } else {
-                    // update the ICAO into the companies fleets
-                    boolean ret = CompanyController.updateAircraftICAO(oldAvion.ICAO, newAvion.ICAO);
-                    if(!ret) {
-                        ctx.result("Companies can't be updated").status(HttpStatus.FAILED_DEPENDENCY);
-                    }
+                    renamed = !newAvion.ICAO.equals(oldAvion.ICAO);
                 }
             } else {
                 // no change
@@ -327,15 +412,18 @@ public class AirplaneController {
 
             // update into the list
             avions.set(index, newAvion);
+            replaced(oldAvion, newAvion);
+
+            // update the ICAO into the companies fleets, after the new catalog is published :
+            // a company handler running between two shards can no longer buy the old ICAO
+            if (renamed) {
+                companiesFlush = CompanyController.updateAircraftICAO(oldAvion.ICAO, newAvion.ICAO);
+            }
 
             // update JSON file
-            try (Writer writer = new FileWriter(JSON_FILEPATH, StandardCharsets.UTF_8);
-                 BufferedWriter bw = new BufferedWriter(writer);
-            ) {
-                mapper.writerWithDefaultPrettyPrinter().writeValue(bw, avions);
-            } catch (IOException e) {
-                ctx.status(HttpStatus.INTERNAL_SERVER_ERROR).result("Failed to write JSON file");
-                return;
+            flush = persist();
+            if (companiesFlush != null) {
+                flush = CompletableFuture.allOf(flush, companiesFlush);
             }
 
             // return the new airplane
@@ -343,5 +431,7 @@ public class AirplaneController {
         } finally {
             MutexAPI.LOCK.unlock();
         }
+
+        WriteBehind.acknowledge(ctx, flush);
     }
 }
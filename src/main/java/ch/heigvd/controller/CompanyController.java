@@ -1,196 +1,244 @@
 package ch.heigvd.controller;
 
-import ch.heigvd.types.AvionJSON;
+import ch.heigvd.coalescing.SingleFlight;
+import ch.heigvd.history.FleetHistory;
+import ch.heigvd.persistence.WriteBehind;
+import ch.heigvd.projection.Projection;
+import ch.heigvd.store.CompanyShard;
+import ch.heigvd.store.CompanyStore;
 import ch.heigvd.types.CompanyJSON;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import ch.heigvd.types.FleetJSON;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 
-import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.util.Comparator;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
 
 public class CompanyController {
 
-    public static final String JSON_FILEPATH = "src/main/java/ch/heigvd/datas/company.json";
-
-    public static List<CompanyJSON> readCompany(String filename) {
-        ObjectMapper mapper = new ObjectMapper();
-
-        try(Reader reader = new FileReader(filename, StandardCharsets.UTF_8);
-            BufferedReader avionJSON = new BufferedReader(reader)) {
-            return mapper.readValue(avionJSON, new TypeReference<>(){});
-        } catch (IOException e) {
-            System.err.println("Error reading : " + filename + e);
-            return List.of();
-        }
+    // keep the search index and the fleet history up to date, caller must hold the lock of the shard
+    private static void added(CompanyShard shard, CompanyJSON company) {
+        shard.add(company);
+        shard.history().created(company);
+        SearchController.INDEX.putCompany(company);
     }
 
-    private static int fleetSize(CompanyJSON company) {
-        if (company == null || company.fleet == null || company.fleet.isEmpty()) return 0;
-        return company.fleet.stream().mapToInt(t -> t.quantity).sum();
+    private static void removed(CompanyShard shard, CompanyJSON company) {
+        shard.remove(company);
+        shard.history().deleted(company);
+        SearchController.INDEX.removeCompany(company.companyICAO);
     }
 
-    // update ICAO aircraft if the ICAO change
-    public static boolean updateAircraftICAO(String oldICAO, String newICAO) {
-        MutexAPI.LOCK.lock();
-
-        try {
-            List<CompanyJSON> companies = readCompany(JSON_FILEPATH);
-            ObjectMapper mapper = new ObjectMapper();
-
-            if(companies.isEmpty()) return true;
+    // update ICAO aircraft if the ICAO change, shard by shard
+    public static CompletableFuture<Void> updateAircraftICAO(String oldICAO, String newICAO) {
+        List<CompletableFuture<Void>> flushes = new ArrayList<>();
 
-            for(CompanyJSON company : companies) {
-                if(company.fleet == null || company.fleet.isEmpty()) continue;
+        for (CompanyShard shard : CompanyStore.shards()) {
+            shard.lock.lock();
 
-                for(CompanyJSON.AircraftTuple tuple : company.fleet) {
-                    if(tuple.aircraftICAO.equals(oldICAO)) {
-                        tuple.aircraftICAO = newICAO;
+            try {
+                boolean changed = false;
+
+                for(CompanyJSON company : shard.companies()) {
+                    if(company.fleet == null || company.fleet.isEmpty()) continue;
+
+                    // the new ICAO may have been bought since the catalog changed, merge into it
+                    CompanyJSON.AircraftTuple target = company.fleet.stream()
+                            .filter(t -> !t.aircraftICAO.equals(oldICAO) && t.aircraftICAO.equalsIgnoreCase(newICAO))
+                            .findFirst()
+                            .orElse(null);
+
+                    Iterator<CompanyJSON.AircraftTuple> it = company.fleet.iterator();
+                    while(it.hasNext()) {
+                        CompanyJSON.AircraftTuple tuple = it.next();
+                        if(!tuple.aircraftICAO.equals(oldICAO)) continue;
+
+                        shard.history().changed(company, oldICAO, -tuple.quantity);
+                        if(target != null) {
+                            target.quantity += tuple.quantity;
+                            it.remove();
+                            shard.history().changed(company, target.aircraftICAO, tuple.quantity);
+                        } else {
+                            tuple.aircraftICAO = newICAO;
+                            shard.history().changed(company, newICAO, tuple.quantity);
+                        }
+                        changed = true;
                     }
                 }
-            }
 
-            // write the avion.json
-            try (Writer writer = new OutputStreamWriter(new FileOutputStream(JSON_FILEPATH), StandardCharsets.UTF_8)) {
-                mapper.writerWithDefaultPrettyPrinter().writeValue(writer, companies);
-                return true;
-            } catch (IOException e) {
-                return false;
+                // write the file of the shard
+                if (changed) flushes.add(shard.persist());
+            } finally {
+                shard.lock.unlock();
             }
-        } finally {
-            MutexAPI.LOCK.unlock();
         }
+
+        if (flushes.isEmpty()) return null;
+        return CompletableFuture.allOf(flushes.toArray(new CompletableFuture<?>[0]));
     }
 
     //-------------- ENDPOINT FUNCTIONS --------------
 
     public static void getCompany(Context ctx) {
-        MutexAPI.LOCK.lock();
+        SingleFlight.serve(ctx, CompanyController::listCompanies);
+    }
 
-        try {
-            List<CompanyJSON> companies;
+    // filter, sort and serialize, shared by the identical concurrent requests
+    private static SingleFlight.Response listCompanies(Context ctx) {
+        Predicate<CompanyJSON> filter = cmp -> true;
+        List<CompanyStore.Sort> orders = new ArrayList<>();
 
-            // filters
-            String countryFilter = ctx.queryParam("country");
-            List<String> fleetSizeFilters = ctx.queryParams("fleetSize");
+        // filters
+        String countryFilter = ctx.queryParam("country");
+        List<String> fleetSizeFilters = ctx.queryParams("fleetSize");
 
-            // sort conditions
-            // [companyICAO | name | country | fleetSize]
-            List<String> sorts = ctx.queryParams("sort");
+        // sort conditions
+        // [companyICAO | name | country | fleetSize]
+        List<String> sorts = ctx.queryParams("sort");
 
-            // fetch datas
-            companies = readCompany(JSON_FILEPATH);
+        // projection [companyICAO | name | country | fleet | fleetSize | fleetTypes]
+        ObjectWriter writer;
+        try {
+            writer = Projection.COMPANY.writer(ctx.queryParams("fields"));
+        } catch (IllegalArgumentException e) {
+            return SingleFlight.Response.text(HttpStatus.BAD_REQUEST, "Fields parameters incorrect");
+        }
 
-            // filter
-            if (countryFilter != null) {
-                companies = companies.stream()
-                        .filter(cmp -> cmp.country.equalsIgnoreCase(countryFilter))
-                        .collect(Collectors.toList());
-            }
+        // filter
+        if (countryFilter != null) {
+            filter = filter.and(cmp -> cmp.country.equalsIgnoreCase(countryFilter));
+        }
 
-            if(!fleetSizeFilters.isEmpty()) {
+        if(!fleetSizeFilters.isEmpty()) {
 
-                for(String fleetSizeFilter : fleetSizeFilters) {
-                    int fleetSize;
-                    boolean less = fleetSizeFilter.startsWith("-");
-                    fleetSizeFilter = less ? fleetSizeFilter.substring(1) : fleetSizeFilter;
-                    try {
-                        fleetSize = Integer.parseInt(fleetSizeFilter);
-                    } catch (NumberFormatException e) {
-                        ctx.status(HttpStatus.BAD_REQUEST).result("Invalid quantity format");
-                        return;
-                    }
+            for(String fleetSizeFilter : fleetSizeFilters) {
+                int fleetSize;
+                boolean less = fleetSizeFilter.startsWith("-");
+                fleetSizeFilter = less ? fleetSizeFilter.substring(1) : fleetSizeFilter;
+                try {
+                    fleetSize = Integer.parseInt(fleetSizeFilter);
+                } catch (NumberFormatException e) {
+                    return SingleFlight.Response.text(HttpStatus.BAD_REQUEST, "Invalid quantity format");
+                }
 
-                    if(less) {
-                        companies = companies.stream()
-                                .filter(cmp -> fleetSize(cmp) <= fleetSize)
-                                .collect(Collectors.toList());
-                    } else {
-                        companies = companies.stream()
-                                .filter(cmp -> fleetSize(cmp) >= fleetSize)
-                                .collect(Collectors.toList());
-                    }
+                if(less) {
+                    filter = filter.and(cmp -> CompanyStore.fleetSize(cmp) <= fleetSize);
+                } else {
+                    filter = filter.and(cmp -> CompanyStore.fleetSize(cmp) >= fleetSize);
                 }
             }
+        }
 
-            // sort
-            if (!sorts.isEmpty()) {
-                Comparator<CompanyJSON> comparator = null;
-                Comparator<CompanyJSON> c;
-
-                for (String s : sorts) {
-                    boolean desc = s.startsWith("-");
-                    String field = desc ? s.substring(1) : s;
-
-                    switch (field) {
-                        case "companyICAO":
-                            c = Comparator.comparing(cmp -> cmp.companyICAO.toLowerCase());
-                            break;
-                        case "name":
-                            c = Comparator.comparing(cmp -> cmp.name.toLowerCase());
-                            break;
-                        case "country":
-                            c = Comparator.comparing(cmp -> cmp.country.toLowerCase());
-                            break;
-                        case "fleetSize":
-                            c = Comparator.comparing(CompanyController::fleetSize);
-                            break;
-                        default:
-                            ctx.status(HttpStatus.BAD_REQUEST).result("Sort parameters incorrect");
-                            return;
-                    }
-
-                    if (desc) c = c.reversed();
-                    comparator = (comparator == null) ? c : comparator.thenComparing(c);
-                }
+        // sort : walk of the presorted views of each shard
+        for (String s : sorts) {
+            boolean desc = s.startsWith("-");
+            String field = desc ? s.substring(1) : s;
 
-                if(comparator != null) {
-                    companies.sort(comparator);
-                }
+            if (!CompanyStore.SORT_FIELDS.contains(field)) {
+                return SingleFlight.Response.text(HttpStatus.BAD_REQUEST, "Sort parameters incorrect");
             }
-
-            // send data
-            ctx.json(companies);
-        } finally {
-            MutexAPI.LOCK.unlock();
+            orders.add(new CompanyStore.Sort(field, desc));
         }
+
+        // send data, scatter-gather over the shards
+        return SingleFlight.Response.rawJson(CompanyStore.list(filter, orders, writer));
     }
 
-    public static void postCompany(Context ctx) {
-        MutexAPI.LOCK.lock();
+    // fleet of a company at a date : company/{company}/fleet?asOf=2026-06-30 | 2026-06-30T12:00:00Z | epoch ms
+    public static void getFleet(Context ctx) {
+        String companyICAO = ctx.pathParam("cmpICAO");
+        String asOfParam = ctx.queryParam("asOf");
 
+        // date, default now
+        long asOf;
         try {
-            ObjectMapper mapper = new ObjectMapper();
+            asOf = parseDate(asOfParam);
+        } catch (DateTimeParseException | NumberFormatException e) {
+            ctx.status(HttpStatus.BAD_REQUEST).result("Invalid asOf format, use an ISO date, an ISO instant or epoch milliseconds");
+            return;
+        }
 
-            // parse JSON body -> CompanyJSON
-            CompanyJSON newCompany;
-            try {
-                newCompany = ctx.bodyAsClass(CompanyJSON.class);
-            } catch (Exception e){
-                ctx.status(HttpStatus.BAD_REQUEST).result("Invalid JSON body");
+        FleetJSON fleet = new FleetJSON();
+        CompanyShard shard = CompanyStore.shardFor(companyICAO);
+        shard.lock.lock();
+
+        try {
+            FleetHistory history = shard.history().get(companyICAO);
+            if(history == null) {
+                ctx.status(HttpStatus.NOT_FOUND).result("Company does not exist");
                 return;
             }
 
-            // validation
-            if(newCompany == null
-                    || newCompany.name == null  || newCompany.name.isBlank()
-                    || newCompany.companyICAO == null || newCompany.companyICAO.isBlank()
-                    || newCompany.country == null || newCompany.country.isBlank()
-                    || newCompany.fleet == null)
-            {
-                ctx.status(HttpStatus.BAD_REQUEST).result("Invalid JSON body");
+            // nearest checkpoint and replay of the changes after it
+            FleetHistory.State state = history.asOf(asOf);
+            if(state == null) {
+                ctx.status(HttpStatus.NOT_FOUND).result("No fleet history before " + Instant.ofEpochMilli(history.since()));
+                return;
+            }
+            if(!state.exists()) {
+                ctx.status(HttpStatus.NOT_FOUND).result("Company did not exist at this date");
                 return;
             }
 
+            fleet.companyICAO = history.companyICAO;
+            fleet.asOf = Instant.ofEpochMilli(asOf).toString();
+            fleet.fleet = state.fleet();
+        } finally {
+            shard.lock.unlock();
+        }
+
+        ctx.json(fleet);
+    }
+
+    // epoch ms, ISO instant, or ISO date (end of the day, UTC)
+    private static long parseDate(String value) {
+        if(value == null || value.isBlank()) return System.currentTimeMillis();
+        if(value.chars().allMatch(Character::isDigit)) return Long.parseLong(value);
+        if(value.contains("T")) return Instant.parse(value).toEpochMilli();
+
+        return LocalDate.parse(value).plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() - 1;
+    }
+
+    public static void postCompany(Context ctx) {
+        CompletableFuture<Void> flush;
+
+        // parse JSON body -> CompanyJSON
+        CompanyJSON newCompany;
+        try {
+            newCompany = ctx.bodyAsClass(CompanyJSON.class);
+        } catch (Exception e){
+            ctx.status(HttpStatus.BAD_REQUEST).result("Invalid JSON body");
+            return;
+        }
+
+        // validation
+        if(newCompany == null
+                || newCompany.name == null  || newCompany.name.isBlank()
+                || newCompany.companyICAO == null || newCompany.companyICAO.isBlank()
+                || newCompany.country == null || newCompany.country.isBlank()
+                || newCompany.fleet == null)
+        {
+            ctx.status(HttpStatus.BAD_REQUEST).result("Invalid JSON body");
+            return;
+        }
+
+        CompanyShard shard = CompanyStore.shardFor(newCompany.companyICAO);
+        shard.lock.lock();
+
+        try {
             // companyICAO unique validation
-            List<CompanyJSON> companies = readCompany(JSON_FILEPATH);
+            List<CompanyJSON> companies = shard.companies();
             if(!companies.isEmpty()) {
                 for(CompanyJSON company : companies) {
-                    if(company.companyICAO.equals(newCompany.companyICAO)) {
+                    if(company.companyICAO.equalsIgnoreCase(newCompany.companyICAO)) {
                         ctx.status(HttpStatus.CONFLICT).result("Company ICAO already exists");
                         return;
                     }
@@ -199,14 +247,8 @@ public class CompanyController {
 
             // aircraftICAO and quantity validation
             if(!newCompany.fleet.isEmpty()) {
-                List<AvionJSON> avions = AirplaneController.readAvions(AirplaneController.JSON_FILEPATH);
-
-                List<String> aircraftICAOs = avions.stream()
-                        .map(a -> a.ICAO)
-                        .toList();
-
                 for(CompanyJSON.AircraftTuple aircraftTuple : newCompany.fleet) {
-                    if(!aircraftICAOs.contains(aircraftTuple.aircraftICAO)) {
+                    if(!AirplaneController.inCatalog(aircraftTuple.aircraftICAO)) {
                         ctx.status(HttpStatus.CONFLICT).result("The aircraft " + aircraftTuple.aircraftICAO + " use an ICAO that does not exist");
                         return;
                     } else {
@@ -219,77 +261,63 @@ public class CompanyController {
             }
 
             // add the company to the list
-            companies.add(newCompany);
+            added(shard, newCompany);
 
-            // write the company.json
-            try (Writer writer = new OutputStreamWriter(new FileOutputStream(JSON_FILEPATH), StandardCharsets.UTF_8)) {
-                mapper.writerWithDefaultPrettyPrinter().writeValue(writer, companies);
-            } catch (IOException e) {
-                ctx.status(HttpStatus.INTERNAL_SERVER_ERROR).result("Failed to write JSON file");
-                return;
-            }
+            // write the file of the shard
+            flush = shard.persist();
 
             // response
             ctx.status(HttpStatus.CREATED).json(newCompany);
         } finally {
-            MutexAPI.LOCK.unlock();
+            shard.lock.unlock();
         }
+
+        WriteBehind.acknowledge(ctx, flush);
     }
 
     public static void deleteCompany(Context ctx) {
+        CompletableFuture<Void> flush;
 
-        MutexAPI.LOCK.lock();
-
-        try {
-            ObjectMapper mapper = new ObjectMapper();
+        String companyICAO = ctx.queryParam("companyICAO");
 
-            String companyICAO = ctx.queryParam("companyICAO");
-
-            if(companyICAO == null || companyICAO.isBlank()) {
-                ctx.status(HttpStatus.BAD_REQUEST).result("Invalid request, need parameter companyICAO not empty");
-                return;
-            }
+        if(companyICAO == null || companyICAO.isBlank()) {
+            ctx.status(HttpStatus.BAD_REQUEST).result("Invalid request, need parameter companyICAO not empty");
+            return;
+        }
 
-            // fetch data
-            List<CompanyJSON> companies = readCompany(JSON_FILEPATH);
+        CompanyShard shard = CompanyStore.shardFor(companyICAO);
+        shard.lock.lock();
 
+        try {
             // delete company
-            CompanyJSON companyRemoved = companies.stream()
-                    .filter(cmp -> cmp.companyICAO.equalsIgnoreCase(companyICAO))
-                    .findFirst()
-                    .orElse(null);
+            CompanyJSON companyRemoved = shard.find(companyICAO);
 
             if(companyRemoved == null) {
                 ctx.status(HttpStatus.NOT_FOUND).result("This company does not exists");
                 return;
             }
-            companies.remove(companyRemoved);
+            removed(shard, companyRemoved);
 
             // update JSON file
-            try (Writer writer = new FileWriter(JSON_FILEPATH, StandardCharsets.UTF_8);
-                 BufferedWriter bw = new BufferedWriter(writer);
-            ) {
-                mapper.writerWithDefaultPrettyPrinter().writeValue(bw, companies);
-            } catch (IOException e) {
-                ctx.status(HttpStatus.INTERNAL_SERVER_ERROR).result("Failed to write JSON file");
-                return;
-            }
+            flush = shard.persist();
 
             // send the removed company
             ctx.json(companyRemoved);
         } finally {
-            MutexAPI.LOCK.unlock();
+            shard.lock.unlock();
         }
+
+        WriteBehind.acknowledge(ctx, flush);
     }
 
     // Aircraft handler for company
     public static void addAircraft(Context ctx) {
+        CompletableFuture<Void> flush;
 
-        MutexAPI.LOCK.lock();
+        CompanyShard shard = CompanyStore.shardFor(ctx.pathParam("cmpICAO"));
+        shard.lock.lock();
 
         try {
-            ObjectMapper mapper = new ObjectMapper();
-
             // company/{company}/?aircraftICAO=xxxx&quantity=zz
 
             String companyICAO = ctx.pathParam("cmpICAO");
@@ -297,9 +325,7 @@ public class CompanyController {
             String quantity = ctx.queryParam("quantity");
 
             int nb;
-            List<CompanyJSON> companies;
             CompanyJSON company;
-            List<AvionJSON> aircrafts;
 
             // check company
             if(companyICAO.isBlank()) {
@@ -307,11 +333,7 @@ public class CompanyController {
                 return;
             }
 
-            companies = readCompany(JSON_FILEPATH);
-            company = companies.stream()
-                    .filter(cmp -> cmp.companyICAO.equalsIgnoreCase(companyICAO))
-                    .findFirst()
-                    .orElse(null);
+            company = shard.find(companyICAO);
             if(company == null) {
                 ctx.status(HttpStatus.NOT_FOUND).result("Company does not exist");
                 return;
@@ -324,9 +346,7 @@ public class CompanyController {
                 return;
             }
 
-            aircrafts = AirplaneController.readAvions(AirplaneController.JSON_FILEPATH);
-
-            if(aircrafts.stream().filter(a -> a.ICAO.equalsIgnoreCase(aircraftICAO)).count() != 1) {
+            if(!AirplaneController.inCatalogIgnoreCase(aircraftICAO)) {
                 ctx.status(HttpStatus.BAD_REQUEST).result("Airplane " +  aircraftICAO + " is not into the catalog");
                 return;
             }
@@ -353,40 +373,36 @@ public class CompanyController {
             if(tuple != null) {
                 tuple.quantity += nb;
             } else {
-                CompanyJSON.AircraftTuple newTuple = new CompanyJSON.AircraftTuple();
-                newTuple.aircraftICAO = aircraftICAO;
-                newTuple.quantity = nb;
-                company.fleet.add(newTuple);
+                tuple = new CompanyJSON.AircraftTuple();
+                tuple.aircraftICAO = aircraftICAO;
+                tuple.quantity = nb;
+                company.fleet.add(tuple);
             }
+            shard.fleetChanged(company);
+            shard.history().changed(company, tuple.aircraftICAO, nb);
 
             // update JSON file
-            try (Writer writer = new FileWriter(JSON_FILEPATH, StandardCharsets.UTF_8);
-                 BufferedWriter bw = new BufferedWriter(writer);
-            ) {
-                mapper.writerWithDefaultPrettyPrinter().writeValue(bw, companies);
-            } catch (IOException e) {
-                ctx.status(HttpStatus.INTERNAL_SERVER_ERROR).result("Failed to write JSON file");
-                return;
-            }
+            flush = shard.persist();
 
             ctx.status(HttpStatus.ACCEPTED).json(company);
         } finally {
-            MutexAPI.LOCK.unlock();
+            shard.lock.unlock();
         }
+
+        WriteBehind.acknowledge(ctx, flush);
     }
 
     public static void sellAircraft(Context ctx) {
+        CompletableFuture<Void> flush;
 
-        MutexAPI.LOCK.lock();
+        CompanyShard shard = CompanyStore.shardFor(ctx.pathParam("cmpICAO"));
+        shard.lock.lock();
 
         try {
-            ObjectMapper mapper = new ObjectMapper();
-
             String companyICAO = ctx.pathParam("cmpICAO");
             String aircraftICAO = ctx.queryParam("aircraftICAO");
             String quantity = ctx.queryParam("quantity");
 
-            List<CompanyJSON> companies;
             CompanyJSON company;
             CompanyJSON.AircraftTuple aircraftToSell;
             int nb;
@@ -397,11 +413,7 @@ public class CompanyController {
                 return;
             }
 
-            companies = readCompany(JSON_FILEPATH);
-            company = companies.stream()
-                    .filter(cmp -> cmp.companyICAO.equalsIgnoreCase(companyICAO))
-                    .findFirst()
-                    .orElse(null);
+            company = shard.find(companyICAO);
             if(company == null) {
                 ctx.status(HttpStatus.NOT_FOUND).result("Company does not exist");
                 return;
@@ -442,18 +454,15 @@ public class CompanyController {
                 aircraftToSell.quantity -= nb;
                 ctx.status(HttpStatus.ACCEPTED).json(aircraftToSell.quantity);
             }
+            shard.fleetChanged(company);
+            shard.history().changed(company, aircraftToSell.aircraftICAO, -nb);
 
             // update JSON file
-            try (Writer writer = new FileWriter(JSON_FILEPATH, StandardCharsets.UTF_8);
-                 BufferedWriter bw = new BufferedWriter(writer);
-            ) {
-                mapper.writerWithDefaultPrettyPrinter().writeValue(bw, companies);
-            } catch (IOException e) {
-                ctx.status(HttpStatus.INTERNAL_SERVER_ERROR).result("Failed to write JSON file");
-                return;
-            }
+            flush = shard.persist();
         } finally {
-            MutexAPI.LOCK.unlock();
+            shard.lock.unlock();
         }
+
+        WriteBehind.acknowledge(ctx, flush);
     }
 }
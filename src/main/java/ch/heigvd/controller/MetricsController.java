@@ -0,0 +1,21 @@
+package ch.heigvd.controller;
+
+import ch.heigvd.coalescing.SingleFlight;
+import ch.heigvd.persistence.WriteBehind;
+import io.javalin.http.Context;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class MetricsController {
+
+    //-------------- ENDPOINT FUNCTIONS --------------
+
+    public static void getMetrics(Context ctx) {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("persistence", WriteBehind.metrics());
+        metrics.put("singleFlight", SingleFlight.metrics());
+
+        ctx.json(metrics);
+    }
+}
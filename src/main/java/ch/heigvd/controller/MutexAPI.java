@@ -1,9 +1,16 @@
 package ch.heigvd.controller;
+import ch.heigvd.profiling.ProfiledLock;
+
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public final class MutexAPI {
     public MutexAPI() {}
 
-    public static final Lock LOCK = new ReentrantLock();
+    // the wait time is reported by the request profile (Phase.LOCK)
+    public static final Lock LOCK = new ProfiledLock(new ReentrantLock());
+
+    // incremented by every mutation, readers can tell their data is stale
+    public static final AtomicLong DATA_VERSION = new AtomicLong();
 }
@@ -0,0 +1,89 @@
+package ch.heigvd.controller;
+
+import ch.heigvd.search.SearchIndex;
+import ch.heigvd.store.CompanyShard;
+import ch.heigvd.store.CompanyStore;
+import ch.heigvd.types.AvionJSON;
+import ch.heigvd.types.CompanyJSON;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+public class SearchController {
+
+    public static final int DEFAULT_LIMIT = 10;
+    public static final int MAX_LIMIT = 100;
+
+    // kept up to date by AirplaneController and CompanyController
+    public static final SearchIndex INDEX = new SearchIndex();
+
+    // index the current airplanes and companies, called once at startup
+    public static void init() {
+        MutexAPI.LOCK.lock();
+
+        try {
+            for (AvionJSON avion : AirplaneController.avions()) {
+                INDEX.putAvion(avion);
+            }
+        } finally {
+            MutexAPI.LOCK.unlock();
+        }
+
+        for (CompanyShard shard : CompanyStore.shards()) {
+            shard.lock.lock();
+
+            try {
+                for (CompanyJSON company : shard.companies()) {
+                    INDEX.putCompany(company);
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    //-------------- ENDPOINT FUNCTIONS --------------
+
+    // search?q=xxx[&type=avion|company][&limit=10][&fuzzy=false]
+    public static void getSearch(Context ctx) {
+        String q = ctx.queryParam("q");
+        String type = ctx.queryParam("type");
+        String paramLimit = ctx.queryParam("limit");
+        String paramFuzzy = ctx.queryParam("fuzzy");
+
+        if (q == null || q.isBlank()) {
+            ctx.status(HttpStatus.BAD_REQUEST).result("Invalid request, need parameter q not empty");
+            return;
+        }
+
+        SearchIndex.Kind kind = null;
+        if (type != null) {
+            switch (type) {
+                case "avion":
+                    kind = SearchIndex.Kind.AVION;
+                    break;
+                case "company":
+                    kind = SearchIndex.Kind.COMPANY;
+                    break;
+                default:
+                    ctx.status(HttpStatus.BAD_REQUEST).result("Invalid type, must be avion or company");
+                    return;
+            }
+        }
+
+        int limit;
+        try {
+            limit = paramLimit == null ? DEFAULT_LIMIT : Integer.parseInt(paramLimit);
+        } catch (NumberFormatException e) {
+            ctx.status(HttpStatus.BAD_REQUEST).result("Invalid limit format");
+            return;
+        }
+        if (limit <= 0 || limit > MAX_LIMIT) {
+            ctx.status(HttpStatus.BAD_REQUEST).result("Invalid limit, must be between 1 and " + MAX_LIMIT);
+            return;
+        }
+
+        boolean fuzzy = paramFuzzy == null || Boolean.parseBoolean(paramFuzzy);
+
+        ctx.json(INDEX.search(q, kind, limit, fuzzy));
+    }
+}
@@ -0,0 +1,271 @@
+package ch.heigvd.history;
+
+import ch.heigvd.Config;
+import ch.heigvd.persistence.WriteBehind;
+import ch.heigvd.types.CompanyJSON;
+import ch.heigvd.types.FleetHistoryFileJSON;
+import ch.heigvd.types.FleetHistoryJSON;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brief :
+ * fleet histories of the companies of one shard, deleted companies included
+ * until their history is older than AIRAPI_HISTORY_RETENTION_DAYS (0 : kept forever).
+ *  file : a compact snapshot and a log, one JSON line per change appended on
+ *  each flush. The log is compacted into the snapshot every
+ *  AIRAPI_HISTORY_COMPACT_EVERY changes, so a flush never rewrites the whole history.
+ *
+ *  not thread safe, guarded by the lock of the shard
+ **/
+public final class FleetHistories {
+
+    public static final long RETENTION_MS =
+            TimeUnit.DAYS.toMillis(Math.max(0, Config.getLong("AIRAPI_HISTORY_RETENTION_DAYS", 365)));
+    public static final int COMPACT_EVERY = Math.max(1, Config.getInt("AIRAPI_HISTORY_COMPACT_EVERY", 1024));
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ObjectWriter SNAPSHOT_WRITER = MAPPER.writerFor(FleetHistoryFileJSON.class);
+    private static final ObjectWriter LOG_WRITER = MAPPER.writerFor(FleetHistoryJSON.Entry.class);
+    private static final ObjectReader LOG_READER = MAPPER.readerFor(FleetHistoryJSON.Entry.class);
+
+    // snapshot and log read from the files of a shard
+    public record Loaded(long sequence, int logged, Collection<FleetHistory> histories) {}
+
+    // upper case companyICAO -> history
+    private final Map<String, FleetHistory> histories = new TreeMap<>();
+
+    private final String snapshotPath;
+    private final String logPath;
+
+    // last change number of the shard
+    private long sequence = 0;
+    // log lines not written yet
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    // changes in the log since the last snapshot, written or not
+    private int logged = 0;
+    // the memory differs from snapshot + log (load, misplaced histories)
+    private boolean snapshotNeeded = false;
+
+    public FleetHistories(String snapshotPath, String logPath) {
+        this.snapshotPath = snapshotPath;
+        this.logPath = logPath;
+    }
+
+    private static String key(String companyICAO) {
+        return companyICAO.toUpperCase(Locale.ROOT);
+    }
+
+    public FleetHistory get(String companyICAO) {
+        return histories.get(key(companyICAO));
+    }
+
+    //-------------- RECORDING --------------
+
+    public void created(CompanyJSON company) {
+        long now = System.currentTimeMillis();
+        FleetHistory history = histories.computeIfAbsent(key(company.companyICAO),
+                k -> FleetHistory.start(company.companyICAO, null, now));
+        record(history, FleetHistory.Event.CREATE, now, null, 0);
+        if (company.fleet != null) {
+            for (CompanyJSON.AircraftTuple tuple : company.fleet) {
+                record(history, FleetHistory.Event.FLEET, now, tuple.aircraftICAO, tuple.quantity);
+            }
+        }
+        prune(history, now);
+    }
+
+    public void deleted(CompanyJSON company) {
+        long now = System.currentTimeMillis();
+        FleetHistory history = track(company, now);
+        record(history, FleetHistory.Event.DELETE, now, null, 0);
+        prune(history, now);
+    }
+
+    // called after the change, the fleet of the company already contains it
+    public void changed(CompanyJSON company, String aircraftICAO, int delta) {
+        long now = System.currentTimeMillis();
+        FleetHistory history = get(company.companyICAO);
+        if (history == null) {
+            // should not happen, load() starts a history for every company
+            track(company, now);
+            return;
+        }
+        if (delta == 0) return;
+        record(history, FleetHistory.Event.FLEET, now, aircraftICAO, delta);
+        prune(history, now);
+    }
+
+    // history of the company, started with its current fleet if it has none
+    private FleetHistory track(CompanyJSON company, long now) {
+        return histories.computeIfAbsent(key(company.companyICAO), k -> {
+            // only in memory until the next snapshot
+            snapshotNeeded = true;
+            return FleetHistory.start(company.companyICAO, company, now);
+        });
+    }
+
+    private void record(FleetHistory history, FleetHistory.Event event, long at, String aircraftICAO, int delta) {
+        FleetHistory.Change change = history.append(event, at, aircraftICAO, delta);
+
+        FleetHistoryJSON.Entry entry = new FleetHistoryJSON.Entry();
+        entry.sequence = ++sequence;
+        entry.companyICAO = history.companyICAO;
+        entry.at = change.at();
+        entry.event = event.name().toLowerCase();
+        entry.aircraftICAO = aircraftICAO;
+        entry.delta = event == FleetHistory.Event.FLEET ? delta : null;
+        try {
+            log.writeBytes(LOG_WRITER.writeValueAsBytes(entry));
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+        log.write('\n');
+        logged++;
+    }
+
+    private void prune(FleetHistory history, long now) {
+        if (RETENTION_MS == 0) return;
+        if (history.prune(now - RETENTION_MS)) histories.remove(key(history.companyICAO));
+    }
+
+    //-------------- FILES --------------
+
+    public boolean hasWrite() {
+        return snapshotNeeded || log.size() > 0;
+    }
+
+    // the histories must be written again as a snapshot (misplaced histories at load)
+    public void snapshotNeeded() {
+        snapshotNeeded = true;
+    }
+
+    /**
+     * Called under the lock of the shard by the persistence thread :
+     * the new log lines, or a snapshot followed by an empty log.
+     **/
+    public WriteBehind.Write prepare() throws IOException {
+        if (snapshotNeeded || logged >= COMPACT_EVERY) {
+            byte[] snapshot = SNAPSHOT_WRITER.writeValueAsBytes(snapshot());
+            log.reset();
+            logged = 0;
+            snapshotNeeded = false;
+
+            // a crash between both leaves old lines in the log, skipped at load (sequence)
+            return () -> WriteBehind.replace(Path.of(snapshotPath), snapshot)
+                    + WriteBehind.replace(Path.of(logPath), new byte[0]);
+        }
+
+        byte[] lines = log.toByteArray();
+        log.reset();
+        return () -> WriteBehind.append(Path.of(logPath), lines);
+    }
+
+    public FleetHistoryFileJSON snapshot() {
+        FleetHistoryFileJSON file = new FleetHistoryFileJSON();
+        file.sequence = sequence;
+        file.histories = new ArrayList<>(histories.size());
+        for (FleetHistory history : histories.values()) file.histories.add(history.toJSON());
+        return file;
+    }
+
+    //-------------- LOAD --------------
+
+    public void put(FleetHistory history) {
+        histories.put(key(history.companyICAO), history);
+    }
+
+    // continue the numbering and the compaction count of the log read at load
+    public void continueLog(Loaded loaded) {
+        sequence = Math.max(sequence, loaded.sequence());
+        logged += loaded.logged();
+    }
+
+    /**
+     * Start the history of the companies that have none (first start, file
+     * edited by hand) and apply the retention.
+     * Only in memory, the snapshot is written with the next change of the shard :
+     * a start without any change never rewrites the data files.
+     **/
+    public void load(List<CompanyJSON> companies) {
+        long now = System.currentTimeMillis();
+
+        for (CompanyJSON company : companies) {
+            if (get(company.companyICAO) == null) track(company, now);
+        }
+
+        if (RETENTION_MS > 0) {
+            snapshotNeeded |= histories.values().removeIf(history -> history.prune(now - RETENTION_MS));
+        }
+    }
+
+    // snapshot then the log entries it does not contain, a truncated last line is ignored
+    public static Loaded read(String snapshotPath, String logPath) {
+        Map<String, FleetHistory> histories = new LinkedHashMap<>();
+        long sequence = 0;
+        int logged = 0;
+
+        if (Files.exists(Path.of(snapshotPath))) {
+            try (Reader reader = new FileReader(snapshotPath, StandardCharsets.UTF_8);
+                 BufferedReader json = new BufferedReader(reader)) {
+                FleetHistoryFileJSON file = MAPPER.readValue(json, FleetHistoryFileJSON.class);
+                sequence = file.sequence;
+                if (file.histories != null) {
+                    for (FleetHistoryJSON h : file.histories) histories.put(key(h.companyICAO), FleetHistory.fromJSON(h));
+                }
+            } catch (IOException e) {
+                System.err.println("Error reading : " + snapshotPath + e);
+            }
+        }
+
+        if (Files.exists(Path.of(logPath))) {
+            try (Reader reader = new FileReader(logPath, StandardCharsets.UTF_8);
+                 BufferedReader lines = new BufferedReader(reader)) {
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    if (line.isBlank()) continue;
+
+                    FleetHistoryJSON.Entry entry;
+                    try {
+                        entry = LOG_READER.readValue(line);
+                    } catch (JsonProcessingException e) {
+                        System.err.println("Ignored line of " + logPath + " : " + line);
+                        continue;
+                    }
+                    if (entry.sequence <= sequence) continue;
+                    sequence = entry.sequence;
+                    logged++;
+
+                    FleetHistory history = histories.computeIfAbsent(key(entry.companyICAO),
+                            k -> FleetHistory.start(entry.companyICAO, null, entry.at));
+                    history.append(FleetHistory.Event.valueOf(entry.event.toUpperCase()), entry.at,
+                            entry.aircraftICAO, entry.delta == null ? 0 : entry.delta);
+                }
+            } catch (IOException e) {
+                System.err.println("Error reading : " + logPath + e);
+            }
+        }
+
+        return new Loaded(sequence, logged, histories.values());
+    }
+}
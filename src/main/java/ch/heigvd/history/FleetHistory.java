@@ -0,0 +1,197 @@
+package ch.heigvd.history;
+
+import ch.heigvd.Config;
+import ch.heigvd.types.CompanyJSON;
+import ch.heigvd.types.FleetHistoryJSON;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Brief :
+ * time-indexed fleet changes of one company.
+ *  base        : state known from `since`, the changes before are pruned
+ *  changes     : append only, ordered by date
+ *  checkpoints : state after every AIRAPI_HISTORY_CHECKPOINT_EVERY changes,
+ *                an as-of query is a binary search, a checkpoint and a short replay
+ *
+ *  not thread safe, guarded by the lock of the shard of the company
+ **/
+public final class FleetHistory {
+
+    public static final int CHECKPOINT_EVERY = Math.max(1, Config.getInt("AIRAPI_HISTORY_CHECKPOINT_EVERY", 64));
+
+    public enum Event { CREATE, DELETE, FLEET }
+
+    record Change(long at, Event event, String aircraftICAO, int delta) {}
+
+    // fleet of the company at one date, sorted by aircraftICAO
+    public static final class State {
+        boolean exists;
+        final TreeMap<String, Integer> fleet = new TreeMap<>();
+
+        State copy() {
+            State s = new State();
+            s.exists = exists;
+            s.fleet.putAll(fleet);
+            return s;
+        }
+
+        void apply(Change change) {
+            switch (change.event()) {
+                case CREATE -> { exists = true; fleet.clear(); }
+                case DELETE -> { exists = false; fleet.clear(); }
+                case FLEET -> {
+                    int quantity = fleet.getOrDefault(change.aircraftICAO(), 0) + change.delta();
+                    if (quantity <= 0) fleet.remove(change.aircraftICAO());
+                    else fleet.put(change.aircraftICAO(), quantity);
+                }
+            }
+        }
+
+        public boolean exists() {
+            return exists;
+        }
+
+        public List<CompanyJSON.AircraftTuple> fleet() {
+            return tuples(fleet);
+        }
+    }
+
+    public final String companyICAO;
+    private long since;
+    private final List<Change> changes = new ArrayList<>();
+    // checkpoints.get(k) : state after the k * CHECKPOINT_EVERY first changes, 0 is the base
+    private final List<State> checkpoints = new ArrayList<>();
+    private State current;
+
+    private FleetHistory(String companyICAO, long since, State base) {
+        this.companyICAO = companyICAO;
+        this.since = since;
+        this.checkpoints.add(base);
+        this.current = base.copy();
+    }
+
+    // history starting now with the given company (null : company unknown until now)
+    public static FleetHistory start(String companyICAO, CompanyJSON company, long now) {
+        State base = new State();
+        if (company != null) {
+            base.exists = true;
+            if (company.fleet != null) {
+                for (CompanyJSON.AircraftTuple tuple : company.fleet) {
+                    base.fleet.merge(tuple.aircraftICAO, tuple.quantity, Integer::sum);
+                }
+            }
+        }
+        return new FleetHistory(companyICAO, now, base);
+    }
+
+    //-------------- RECORDING --------------
+
+    // the appended change, recorded in the log of the shard by FleetHistories
+    Change append(Event event, long at, String aircraftICAO, int delta) {
+        // the dates stay ordered even if the clock goes back
+        Change change = new Change(Math.max(at, last()), event, aircraftICAO, delta);
+
+        changes.add(change);
+        current.apply(change);
+        if (changes.size() % CHECKPOINT_EVERY == 0) checkpoints.add(current.copy());
+        return change;
+    }
+
+    private long last() {
+        return changes.isEmpty() ? since : changes.get(changes.size() - 1).at();
+    }
+
+    //-------------- QUERIES --------------
+
+    public long since() {
+        return since;
+    }
+
+    // state at the date, null if the date is before the retained history
+    public State asOf(long at) {
+        if (at < since) return null;
+
+        // number of changes done at this date
+        int lo = 0, hi = changes.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (changes.get(mid).at() <= at) lo = mid + 1; else hi = mid;
+        }
+
+        int k = lo / CHECKPOINT_EVERY;
+        State state = checkpoints.get(k).copy();
+        for (int i = k * CHECKPOINT_EVERY; i < lo; i++) state.apply(changes.get(i));
+        return state;
+    }
+
+    //-------------- RETENTION --------------
+
+    /**
+     * Fold the changes older than the horizon into the base, by blocks of
+     * CHECKPOINT_EVERY so the checkpoints stay aligned.
+     * Returns true if the whole history can be dropped : company deleted and
+     * last change older than the horizon, whatever the number of changes.
+     **/
+    public boolean prune(long horizon) {
+        while (checkpoints.size() > 1 && changes.get(CHECKPOINT_EVERY - 1).at() < horizon) {
+            since = changes.get(CHECKPOINT_EVERY - 1).at();
+            changes.subList(0, CHECKPOINT_EVERY).clear();
+            checkpoints.remove(0);
+        }
+
+        return !current.exists && last() < horizon;
+    }
+
+    //-------------- FILE --------------
+
+    public FleetHistoryJSON toJSON() {
+        State base = checkpoints.get(0);
+
+        FleetHistoryJSON json = new FleetHistoryJSON();
+        json.companyICAO = companyICAO;
+        json.since = since;
+        json.exists = base.exists;
+        json.fleet = tuples(base.fleet);
+        json.changes = new ArrayList<>(changes.size());
+        for (Change change : changes) {
+            FleetHistoryJSON.Change c = new FleetHistoryJSON.Change();
+            c.at = change.at();
+            c.event = change.event().name().toLowerCase();
+            c.aircraftICAO = change.aircraftICAO();
+            c.delta = change.event() == Event.FLEET ? change.delta() : null;
+            json.changes.add(c);
+        }
+        return json;
+    }
+
+    public static FleetHistory fromJSON(FleetHistoryJSON json) {
+        State base = new State();
+        base.exists = json.exists;
+        if (json.fleet != null) {
+            for (CompanyJSON.AircraftTuple tuple : json.fleet) base.fleet.put(tuple.aircraftICAO, tuple.quantity);
+        }
+
+        FleetHistory history = new FleetHistory(json.companyICAO, json.since, base);
+        if (json.changes != null) {
+            for (FleetHistoryJSON.Change c : json.changes) {
+                history.append(Event.valueOf(c.event.toUpperCase()), c.at, c.aircraftICAO, c.delta == null ? 0 : c.delta);
+            }
+        }
+        return history;
+    }
+
+    private static List<CompanyJSON.AircraftTuple> tuples(Map<String, Integer> fleet) {
+        List<CompanyJSON.AircraftTuple> tuples = new ArrayList<>(fleet.size());
+        for (Map.Entry<String, Integer> e : fleet.entrySet()) {
+            CompanyJSON.AircraftTuple tuple = new CompanyJSON.AircraftTuple();
+            tuple.aircraftICAO = e.getKey();
+            tuple.quantity = e.getValue();
+            tuples.add(tuple);
+        }
+        return tuples;
+    }
+}
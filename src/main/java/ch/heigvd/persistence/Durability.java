@@ -0,0 +1,16 @@
+package ch.heigvd.persistence;
+
+// when a mutating request is acknowledged
+public enum Durability {
+    APPLIED,  // as soon as the in-memory data is modified
+    DURABLE;  // once the change has been flushed to the JSON file
+
+    public static Durability parse(String value, Durability defaultValue) {
+        if (value == null || value.isBlank()) return defaultValue;
+
+        for (Durability d : values()) {
+            if (d.name().equalsIgnoreCase(value.trim())) return d;
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,355 @@
+package ch.heigvd.persistence;
+
+import ch.heigvd.Config;
+import ch.heigvd.profiling.FlushEvent;
+import ch.heigvd.profiling.Phase;
+import ch.heigvd.profiling.Profiler;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+
+/**
+ * Brief :
+ * single persistence thread, the handlers only modify the in-memory data and
+ * schedule the file. Every change scheduled during the same window is written
+ * with one rewrite per file.
+ *  a failed write stays queued and is retried, in order and with a backoff,
+ *  before any later write of the same file
+ **/
+public final class WriteBehind {
+    private WriteBehind() {}
+
+    public static final long WINDOW_MS = Config.getLong("AIRAPI_FLUSH_WINDOW_MS", 20);
+    public static final long ACK_TIMEOUT_MS = Config.getLong("AIRAPI_ACK_TIMEOUT_MS", 5000);
+    public static final boolean FSYNC = Config.getBoolean("AIRAPI_FSYNC", false);
+    public static final Durability DEFAULT_DURABILITY =
+            Durability.parse(Config.get("AIRAPI_DURABILITY", "durable"), Durability.DURABLE);
+
+    private static final long MIN_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 10_000;
+
+    private static final ObjectWriter WRITER = new ObjectMapper().writerWithDefaultPrettyPrinter();
+
+    // disk I/O prepared under the data lock and run without it, returns the bytes written
+    @FunctionalInterface
+    public interface Write {
+        long run() throws IOException;
+    }
+
+    // called under the data lock by the persistence thread
+    @FunctionalInterface
+    public interface Prepare {
+        Write prepare() throws IOException;
+    }
+
+    // a file to write : the lock protecting its data and how to prepare the write
+    private record Source(Lock lock, Prepare prepare) {}
+
+    private record Prepared(String path, Write write) {}
+
+    private static final Object MONITOR = new Object();
+    private static final Object WRITE_MONITOR = new Object();
+
+    // guarded by MONITOR
+    private static Map<String, Source> pending = new LinkedHashMap<>();
+    private static int pendingChanges = 0;
+    private static CompletableFuture<Void> nextFlush = new CompletableFuture<>();
+    private static List<Prepared> failed = new ArrayList<>();
+    private static long backoffMs = 0;
+    private static Thread worker;
+
+    // metrics, guarded by MONITOR
+    private static long flushCount = 0;
+    private static long changeCount = 0;
+    private static long failedFlushCount = 0;
+    private static int lastBatchSize = 0;
+    private static int maxBatchSize = 0;
+    private static long lastFlushMicros = 0;
+    private static long maxFlushMicros = 0;
+    private static long totalFlushMicros = 0;
+
+    /**
+     * Mark a file as dirty. Must be called after the change has been applied,
+     * the returned future completes when a flush containing it is on disk.
+     **/
+    public static CompletableFuture<Void> schedule(String path, Lock lock, Supplier<?> snapshot) {
+        return schedule(path, lock, () -> {
+            byte[] bytes = WRITER.writeValueAsBytes(snapshot.get());
+            return () -> replace(Path.of(path), bytes);
+        });
+    }
+
+    public static CompletableFuture<Void> schedule(String path, Lock lock, Prepare prepare) {
+        return schedule(path, lock, prepare, true);
+    }
+
+    /**
+     * change = false : a second file of a change already scheduled, not counted
+     * again in the batch size metrics
+     **/
+    public static CompletableFuture<Void> schedule(String path, Lock lock, Prepare prepare, boolean change) {
+        synchronized (MONITOR) {
+            if (worker == null) {
+                worker = new Thread(WriteBehind::run, "write-behind");
+                worker.setDaemon(true);
+                worker.start();
+            }
+
+            pending.put(path, new Source(lock, prepare));
+            if (change) pendingChanges++;
+            MONITOR.notifyAll();
+            return nextFlush;
+        }
+    }
+
+    // write everything still pending from the calling thread (used at shutdown)
+    public static void drain() {
+        Map<String, Source> batch;
+        List<Prepared> retries;
+        CompletableFuture<Void> done;
+        int changes;
+
+        synchronized (MONITOR) {
+            if (pending.isEmpty() && failed.isEmpty()) return;
+            batch = pending;
+            retries = failed;
+            changes = pendingChanges;
+            done = nextFlush;
+            pending = new LinkedHashMap<>();
+            failed = new ArrayList<>();
+            pendingChanges = 0;
+            nextFlush = new CompletableFuture<>();
+        }
+        flush(retries, batch, changes, done);
+    }
+
+    /**
+     * Wait for the flush if the request (param durability) or the deployment
+     * (AIRAPI_DURABILITY) asks for a durable acknowledgement.
+     **/
+    public static void acknowledge(Context ctx, CompletableFuture<Void> flush) {
+        if (flush == null) return;
+        if (Durability.parse(ctx.queryParam("durability"), DEFAULT_DURABILITY) == Durability.APPLIED) return;
+
+        long start = Profiler.start();
+        try {
+            flush.get(ACK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            notDurableYet(ctx);
+        } catch (ExecutionException | TimeoutException e) {
+            // the write failed or is late, it stays queued and is retried
+            notDurableYet(ctx);
+        } finally {
+            Profiler.record(Phase.FLUSH, start);
+        }
+    }
+
+    // the change is in memory and still queued, a retry would apply it twice
+    private static void notDurableYet(Context ctx) {
+        ctx.status(HttpStatus.ACCEPTED).result("Change applied, not yet written to disk, do not retry");
+    }
+
+    public static Map<String, Object> metrics() {
+        synchronized (MONITOR) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("flushes", flushCount);
+            m.put("failedFlushes", failedFlushCount);
+            m.put("changes", changeCount);
+            m.put("pendingChanges", pendingChanges);
+            m.put("retryingWrites", failed.size());
+            m.put("retryBackoffMs", backoffMs);
+            m.put("lastBatchSize", lastBatchSize);
+            m.put("maxBatchSize", maxBatchSize);
+            m.put("avgBatchSize", flushCount == 0 ? 0.0 : (double) changeCount / flushCount);
+            m.put("lastFlushMicros", lastFlushMicros);
+            m.put("maxFlushMicros", maxFlushMicros);
+            m.put("avgFlushMicros", flushCount == 0 ? 0 : totalFlushMicros / flushCount);
+            m.put("windowMs", WINDOW_MS);
+            m.put("fsync", FSYNC);
+            m.put("defaultDurability", DEFAULT_DURABILITY.name().toLowerCase());
+            return m;
+        }
+    }
+
+    //-------------- PERSISTENCE THREAD --------------
+
+    private static void run() {
+        try {
+            while (true) {
+                long delay;
+                synchronized (MONITOR) {
+                    while (pending.isEmpty() && failed.isEmpty()) MONITOR.wait();
+                    delay = Math.max(WINDOW_MS, backoffMs);
+                }
+
+                // coalescing window, every change arriving meanwhile joins this flush
+                if (delay > 0) Thread.sleep(delay);
+
+                drain();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void flush(List<Prepared> retries, Map<String, Source> batch, int changes, CompletableFuture<Void> done) {
+        long start = System.nanoTime();
+        List<Prepared> failedNow = new ArrayList<>();
+        Map<String, Source> unprepared = new LinkedHashMap<>();
+        IOException error = null;
+
+        synchronized (WRITE_MONITOR) {
+            // the older failed writes first, a file is written in the order of its changes
+            for (Prepared write : retries) {
+                IOException e = write(write, failedNow);
+                if (e != null) error = e;
+            }
+
+            for (Map.Entry<String, Source> entry : batch.entrySet()) {
+                Source source = entry.getValue();
+                Write write;
+
+                // snapshot under the data lock, the disk I/O is done without it
+                source.lock().lock();
+                try {
+                    write = source.prepare().prepare();
+                } catch (IOException e) {
+                    System.err.println("Error serializing : " + entry.getKey() + e);
+                    unprepared.put(entry.getKey(), source);
+                    error = e;
+                    continue;
+                } finally {
+                    source.lock().unlock();
+                }
+
+                IOException e = write(new Prepared(entry.getKey(), write), failedNow);
+                if (e != null) error = e;
+            }
+        }
+
+        long micros = (System.nanoTime() - start) / 1000;
+        synchronized (MONITOR) {
+            flushCount++;
+            changeCount += changes;
+            if (error != null) failedFlushCount++;
+            lastBatchSize = changes;
+            maxBatchSize = Math.max(maxBatchSize, changes);
+            lastFlushMicros = micros;
+            maxFlushMicros = Math.max(maxFlushMicros, micros);
+            totalFlushMicros += micros;
+
+            // keep the failures for the next flush, after a backoff
+            failedNow.addAll(failed);
+            failed = failedNow;
+            unprepared.forEach(pending::putIfAbsent);
+            if (error == null) {
+                backoffMs = 0;
+            } else {
+                backoffMs = Math.min(MAX_BACKOFF_MS, Math.max(MIN_BACKOFF_MS, backoffMs * 2));
+                MONITOR.notifyAll();
+            }
+        }
+
+        if (error == null) {
+            done.complete(null);
+        } else {
+            done.completeExceptionally(error);
+        }
+    }
+
+    // a file that failed in this flush is not written again until its failed write succeeds
+    private static IOException write(Prepared write, List<Prepared> failedNow) {
+        for (Prepared f : failedNow) {
+            if (f.path().equals(write.path())) {
+                failedNow.add(write);
+                return null;
+            }
+        }
+
+        FlushEvent event = new FlushEvent();
+        event.begin();
+        long bytes;
+        try {
+            bytes = write.write().run();
+        } catch (IOException e) {
+            System.err.println("Error writing : " + write.path() + e);
+            failedNow.add(write);
+            return e;
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = write.path();
+            event.bytes = bytes;
+            event.fsync = FSYNC;
+            event.commit();
+        }
+        return null;
+    }
+
+    //-------------- FILES --------------
+
+    // write a temporary file then replace, a crash never leaves a half written JSON
+    public static long replace(Path target, byte[] bytes) throws IOException {
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) channel.write(buffer);
+            if (FSYNC) channel.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // the rename is only durable once the directory is on disk
+        if (FSYNC) syncDirectory(target);
+        return bytes.length;
+    }
+
+    // append at the end of the file, a failed append is removed so the retry does not duplicate it
+    public static long append(Path target, byte[] bytes) throws IOException {
+        if (bytes.length == 0) return 0;
+
+        boolean created = !Files.exists(target);
+        try (FileChannel channel = FileChannel.open(target,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            try {
+                channel.position(size);
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) channel.write(buffer);
+                if (FSYNC) channel.force(true);
+            } catch (IOException e) {
+                channel.truncate(size);
+                throw e;
+            }
+        }
+        if (FSYNC && created) syncDirectory(target);
+        return bytes.length;
+    }
+
+    private static void syncDirectory(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+}
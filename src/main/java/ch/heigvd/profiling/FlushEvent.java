@@ -0,0 +1,26 @@
+package ch.heigvd.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("ch.heigvd.Flush")
+@Label("File Rewrite")
+@Category("airAPI")
+@Description("Rewrite of a JSON file by the persistence thread")
+@StackTrace(false)
+public class FlushEvent extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("Size")
+    @DataAmount
+    public long bytes;
+
+    @Label("Fsync")
+    public boolean fsync;
+}
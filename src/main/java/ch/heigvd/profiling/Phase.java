@@ -0,0 +1,19 @@
+package ch.heigvd.profiling;
+
+// phases of a request, the name is the one of the Server-Timing header
+public enum Phase {
+    LOCK("lock", "waiting for the data lock"),
+    READ("read", "reading and parsing a JSON file"),
+    COALESCE("coalesce", "waiting for an identical request"),
+    FILTER_SORT("filter", "filter and sort"),
+    SERIALIZE("serialize", "JSON serialization"),
+    FLUSH("flush", "waiting for the file rewrite");
+
+    public final String metricName;
+    public final String description;
+
+    Phase(String metricName, String description) {
+        this.metricName = metricName;
+        this.description = description;
+    }
+}
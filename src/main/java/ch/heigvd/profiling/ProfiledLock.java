@@ -0,0 +1,52 @@
+package ch.heigvd.profiling;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+// lock recording the time spent waiting for it (Phase.LOCK), free when uncontended
+public final class ProfiledLock implements Lock {
+    private final Lock delegate;
+
+    public ProfiledLock(Lock delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void lock() {
+        if (delegate.tryLock()) return;
+
+        long start = Profiler.start();
+        delegate.lock();
+        Profiler.record(Phase.LOCK, start);
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        if (delegate.tryLock()) return;
+
+        long start = Profiler.start();
+        delegate.lockInterruptibly();
+        Profiler.record(Phase.LOCK, start);
+    }
+
+    @Override
+    public boolean tryLock() {
+        return delegate.tryLock();
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        return delegate.tryLock(time, unit);
+    }
+
+    @Override
+    public void unlock() {
+        delegate.unlock();
+    }
+
+    @Override
+    public Condition newCondition() {
+        return delegate.newCondition();
+    }
+}
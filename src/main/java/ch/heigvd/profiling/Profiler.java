@@ -0,0 +1,116 @@
+package ch.heigvd.profiling;
+
+import ch.heigvd.Config;
+import io.javalin.http.Context;
+
+/**
+ * Brief :
+ * per request breakdown of the time spent in each Phase.
+ *  JFR : one PhaseEvent per phase and one RequestEvent per request, only
+ *        built when a recording enables them
+ *  HTTP : Server-Timing header with the same breakdown
+ *  log : full profile of the requests slower than AIRAPI_SLOW_REQUEST_MS
+ *
+ *  the profile is kept in a ThreadLocal, a handler runs on a single thread
+ **/
+public final class Profiler {
+    private Profiler() {}
+
+    public static final long SLOW_REQUEST_MS = Config.getLong("AIRAPI_SLOW_REQUEST_MS", 500);
+    public static final boolean SERVER_TIMING = Config.getBoolean("AIRAPI_SERVER_TIMING", true);
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private static final class RequestProfile {
+        final long start = System.nanoTime();
+        final long[] nanos = new long[PHASES.length];
+        final RequestEvent event = new RequestEvent();
+        String route;
+    }
+
+    private static final ThreadLocal<RequestProfile> CURRENT = new ThreadLocal<>();
+
+    //-------------- PHASES --------------
+
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    // add the time elapsed since start to the phase of the current request
+    public static void record(Phase phase, long start) {
+        long duration = System.nanoTime() - start;
+        RequestProfile profile = CURRENT.get();
+
+        if (profile != null) {
+            profile.nanos[phase.ordinal()] += duration;
+        }
+
+        PhaseEvent event = new PhaseEvent();
+        if (event.isEnabled()) {
+            event.phase = phase.metricName;
+            event.route = profile == null ? null : profile.route;
+            event.phaseDuration = duration;
+            event.commit();
+        }
+    }
+
+    //-------------- REQUEST (before / after handlers) --------------
+
+    public static void begin(Context ctx) {
+        RequestProfile profile = new RequestProfile();
+        profile.route = ctx.method() + " " + ctx.path();
+        profile.event.begin();
+        CURRENT.set(profile);
+    }
+
+    public static void end(Context ctx) {
+        RequestProfile profile = CURRENT.get();
+        CURRENT.remove();
+        if (profile == null) return;
+
+        long total = System.nanoTime() - profile.start;
+
+        if (SERVER_TIMING) {
+            ctx.header("Server-Timing", serverTiming(profile, total));
+        }
+
+        RequestEvent event = profile.event;
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = ctx.method().name();
+            event.route = ctx.endpointHandlerPath();
+            event.query = ctx.queryString();
+            event.status = ctx.statusCode();
+            event.lock = profile.nanos[Phase.LOCK.ordinal()];
+            event.read = profile.nanos[Phase.READ.ordinal()];
+            event.coalesce = profile.nanos[Phase.COALESCE.ordinal()];
+            event.filter = profile.nanos[Phase.FILTER_SORT.ordinal()];
+            event.serialize = profile.nanos[Phase.SERIALIZE.ordinal()];
+            event.flush = profile.nanos[Phase.FLUSH.ordinal()];
+            event.commit();
+        }
+
+        if (total / 1_000_000 >= SLOW_REQUEST_MS) {
+            String query = ctx.queryString();
+            System.err.println("Slow request : " + profile.route + (query == null ? "" : "?" + query)
+                    + " status=" + ctx.statusCode() + " " + serverTiming(profile, total));
+        }
+    }
+
+    // lock;dur=0.012, read;dur=1.2, ..., total;dur=3.4 (milliseconds)
+    private static String serverTiming(RequestProfile profile, long total) {
+        StringBuilder sb = new StringBuilder();
+        for (Phase phase : PHASES) {
+            long nanos = profile.nanos[phase.ordinal()];
+            if (nanos == 0) continue;
+            appendMetric(sb, phase.metricName, nanos);
+        }
+        appendMetric(sb, "total", total);
+        return sb.toString();
+    }
+
+    private static void appendMetric(StringBuilder sb, String name, long nanos) {
+        if (!sb.isEmpty()) sb.append(", ");
+        sb.append(name).append(";dur=").append(nanos / 1000 / 1000.0);
+    }
+}
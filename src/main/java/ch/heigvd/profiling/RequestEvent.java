@@ -0,0 +1,52 @@
+package ch.heigvd.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("ch.heigvd.Request")
+@Label("HTTP Request")
+@Category("airAPI")
+@Description("A request with the breakdown of its phases")
+@StackTrace(false)
+class RequestEvent extends Event {
+    @Label("Method")
+    String method;
+
+    @Label("Route")
+    String route;
+
+    @Label("Query")
+    String query;
+
+    @Label("Status")
+    int status;
+
+    @Label("Lock Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    long lock;
+
+    @Label("Read")
+    @Timespan(Timespan.NANOSECONDS)
+    long read;
+
+    @Label("Coalesce Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    long coalesce;
+
+    @Label("Filter and Sort")
+    @Timespan(Timespan.NANOSECONDS)
+    long filter;
+
+    @Label("Serialize")
+    @Timespan(Timespan.NANOSECONDS)
+    long serialize;
+
+    @Label("Flush Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    long flush;
+}
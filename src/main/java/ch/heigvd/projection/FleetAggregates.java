@@ -0,0 +1,62 @@
+package ch.heigvd.projection;
+
+import ch.heigvd.store.CompanyStore;
+import ch.heigvd.types.CompanyJSON;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.cfg.MapperConfig;
+import com.fasterxml.jackson.databind.introspect.AnnotatedClass;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+import com.fasterxml.jackson.databind.ser.VirtualBeanPropertyWriter;
+import com.fasterxml.jackson.databind.util.Annotations;
+
+// virtual properties replacing the fleet array of a company in a projection
+public final class FleetAggregates {
+    private FleetAggregates() {}
+
+    // total number of aircraft
+    public static class FleetSize extends VirtualBeanPropertyWriter {
+        private static final long serialVersionUID = 1L;
+
+        public FleetSize() {}
+
+        protected FleetSize(BeanPropertyDefinition propDef, Annotations annotations, JavaType type) {
+            super(propDef, annotations, type);
+        }
+
+        @Override
+        protected Object value(Object bean, JsonGenerator gen, SerializerProvider prov) {
+            return CompanyStore.fleetSize((CompanyJSON) bean);
+        }
+
+        @Override
+        public VirtualBeanPropertyWriter withConfig(MapperConfig<?> config, AnnotatedClass declaringClass,
+                                                    BeanPropertyDefinition propDef, JavaType type) {
+            return new FleetSize(propDef, declaringClass.getAnnotations(), type);
+        }
+    }
+
+    // number of different aircraft types
+    public static class FleetTypes extends VirtualBeanPropertyWriter {
+        private static final long serialVersionUID = 1L;
+
+        public FleetTypes() {}
+
+        protected FleetTypes(BeanPropertyDefinition propDef, Annotations annotations, JavaType type) {
+            super(propDef, annotations, type);
+        }
+
+        @Override
+        protected Object value(Object bean, JsonGenerator gen, SerializerProvider prov) {
+            CompanyJSON company = (CompanyJSON) bean;
+            return company.fleet == null ? 0 : company.fleet.size();
+        }
+
+        @Override
+        public VirtualBeanPropertyWriter withConfig(MapperConfig<?> config, AnnotatedClass declaringClass,
+                                                    BeanPropertyDefinition propDef, JavaType type) {
+            return new FleetTypes(propDef, declaringClass.getAnnotations(), type);
+        }
+    }
+}
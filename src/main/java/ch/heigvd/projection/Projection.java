@@ -0,0 +1,86 @@
+package ch.heigvd.projection;
+
+import ch.heigvd.types.AvionJSON;
+import ch.heigvd.types.CompanyJSON;
+import com.fasterxml.jackson.annotation.JsonFilter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.annotation.JsonAppend;
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Brief :
+ * fields= projection of the listings (fields=ICAO,range or fields=ICAO&fields=range)
+ *  one ObjectWriter per distinct projection, built once and cached, its
+ *  serializers are resolved on first use then reused by every request
+ *  the filter and the aggregates are added by mix-ins, the JSON files and the
+ *  other responses are serialized as before
+ **/
+public final class Projection {
+
+    private static final String FILTER_ID = "projection";
+
+    @JsonFilter(FILTER_ID)
+    private abstract static class AvionProjection {}
+
+    @JsonFilter(FILTER_ID)
+    @JsonAppend(props = {
+            @JsonAppend.Prop(value = FleetAggregates.FleetSize.class, name = "fleetSize", type = Integer.class),
+            @JsonAppend.Prop(value = FleetAggregates.FleetTypes.class, name = "fleetTypes", type = Integer.class)
+    })
+    private abstract static class CompanyProjection {}
+
+    public static final Projection AVION = new Projection(AvionJSON.class, AvionProjection.class,
+            List.of("constructor", "ICAO", "range", "maxCapacity"));
+
+    // fleetSize / fleetTypes : aggregates replacing the fleet array
+    public static final Projection COMPANY = new Projection(CompanyJSON.class, CompanyProjection.class,
+            List.of("companyICAO", "name", "country", "fleet", "fleetSize", "fleetTypes"));
+
+    private final ObjectWriter defaultWriter = new ObjectMapper().writer();
+    private final ObjectMapper mapper = new ObjectMapper();
+    // lowercase name -> property name
+    private final Map<String, String> fields = new LinkedHashMap<>();
+    private final Map<String, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    private Projection(Class<?> type, Class<?> mixin, List<String> fieldNames) {
+        mapper.addMixIn(type, mixin);
+        for (String field : fieldNames) {
+            fields.put(field.toLowerCase(Locale.ROOT), field);
+        }
+    }
+
+    /**
+     * Writer for the values of the fields parameters, the default writer
+     * (every field, no aggregate) when there is none.
+     * throws IllegalArgumentException for an unknown field
+     **/
+    public ObjectWriter writer(List<String> params) {
+        Set<String> selected = new TreeSet<>();
+        for (String param : params) {
+            for (String name : param.split(",")) {
+                if (name.isBlank()) continue;
+
+                String field = fields.get(name.trim().toLowerCase(Locale.ROOT));
+                if (field == null) {
+                    throw new IllegalArgumentException("Unknown field " + name.trim());
+                }
+                selected.add(field);
+            }
+        }
+
+        if (selected.isEmpty()) return defaultWriter;
+
+        return writers.computeIfAbsent(String.join(",", selected), key -> mapper.writer(
+                new SimpleFilterProvider().addFilter(FILTER_ID, SimpleBeanPropertyFilter.filterOutAllExcept(selected))));
+    }
+}
@@ -0,0 +1,259 @@
+package ch.heigvd.search;
+
+import ch.heigvd.types.AvionJSON;
+import ch.heigvd.types.CompanyJSON;
+import ch.heigvd.types.SearchResultJSON;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Brief :
+ * in-memory index over the airplanes (ICAO, constructor) and the companies
+ * (companyICAO, name).
+ *  prefix : sorted map of the normalized terms (full value and each word)
+ *  fuzzy  : trigram -> terms, ranked by Dice coefficient
+ *
+ *  updated incrementally by the controllers on every mutation
+ **/
+public final class SearchIndex {
+
+    public enum Kind { AVION, COMPANY }
+
+    private static final double FUZZY_MIN_SIMILARITY = 0.3;
+
+    private record Doc(Kind kind, String id) {}
+
+    private record Posting(Doc doc, String field, String value, String normalized) {}
+
+    private record Hit(Posting posting, double score) {}
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // normalized term -> postings containing it
+    private final TreeMap<String, Set<Posting>> terms = new TreeMap<>();
+    // trigram -> terms containing it
+    private final Map<String, Set<String>> grams = new HashMap<>();
+    // term -> number of its trigrams, computed once when the term is indexed
+    private final Map<String, Integer> gramCounts = new HashMap<>();
+    // document -> its postings, used for the removal
+    private final Map<Doc, List<Posting>> docs = new HashMap<>();
+
+    //-------------- UPDATES --------------
+
+    public void putAvion(AvionJSON avion) {
+        if (avion == null || avion.ICAO == null) return;
+
+        Doc doc = new Doc(Kind.AVION, avion.ICAO);
+        lock.writeLock().lock();
+        try {
+            remove(doc);
+            add(doc, "ICAO", avion.ICAO);
+            add(doc, "constructor", avion.constructor);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeAvion(String icao) {
+        lock.writeLock().lock();
+        try {
+            remove(new Doc(Kind.AVION, icao));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void putCompany(CompanyJSON company) {
+        if (company == null || company.companyICAO == null) return;
+
+        Doc doc = new Doc(Kind.COMPANY, company.companyICAO);
+        lock.writeLock().lock();
+        try {
+            remove(doc);
+            add(doc, "companyICAO", company.companyICAO);
+            add(doc, "name", company.name);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeCompany(String companyICAO) {
+        lock.writeLock().lock();
+        try {
+            remove(new Doc(Kind.COMPANY, companyICAO));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //-------------- QUERY --------------
+
+    /**
+     * Top-k documents for the query, kind null means every kind.
+     * exact value > exact word > prefix of the value > prefix of a word > fuzzy
+     **/
+    public List<SearchResultJSON> search(String query, Kind kind, int limit, boolean fuzzy) {
+        String q = normalize(query);
+        if (q.isEmpty() || limit <= 0) return List.of();
+
+        Map<Doc, Hit> best = new HashMap<>();
+
+        lock.readLock().lock();
+        try {
+            // prefix matches
+            for (Map.Entry<String, Set<Posting>> entry : terms.subMap(q, true, q + Character.MAX_VALUE, false).entrySet()) {
+                String term = entry.getKey();
+                for (Posting p : entry.getValue()) {
+                    if (kind != null && p.doc().kind() != kind) continue;
+
+                    boolean whole = term.equals(p.normalized());
+                    double score;
+                    if (term.length() == q.length()) {
+                        score = whole ? 100 : 90;
+                    } else {
+                        score = (whole ? 80 : 70) - 10.0 * (term.length() - q.length()) / term.length();
+                    }
+                    offer(best, p, score);
+                }
+            }
+
+            // fuzzy matches, only useful for the documents not found by prefix
+            if (fuzzy) {
+                Set<String> queryGrams = trigrams(q);
+                Map<String, Integer> shared = new HashMap<>();
+                for (String g : queryGrams) {
+                    Set<String> matching = grams.get(g);
+                    if (matching == null) continue;
+                    for (String term : matching) shared.merge(term, 1, Integer::sum);
+                }
+
+                for (Map.Entry<String, Integer> entry : shared.entrySet()) {
+                    String term = entry.getKey();
+                    double dice = 2.0 * entry.getValue() / (queryGrams.size() + gramCounts.get(term));
+                    if (dice < FUZZY_MIN_SIMILARITY) continue;
+
+                    for (Posting p : terms.get(term)) {
+                        if (kind != null && p.doc().kind() != kind) continue;
+                        offer(best, p, 50 * dice);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // keep the k best with a min-heap, equal scores ordered by value then id
+        Comparator<Hit> order = Comparator.comparingDouble(Hit::score)
+                .thenComparing(h -> h.posting().value(), Comparator.reverseOrder())
+                .thenComparing(h -> h.posting().doc().kind(), Comparator.reverseOrder())
+                .thenComparing(h -> h.posting().doc().id(), Comparator.reverseOrder());
+        PriorityQueue<Hit> top = new PriorityQueue<>(order);
+        for (Hit hit : best.values()) {
+            top.offer(hit);
+            if (top.size() > limit) top.poll();
+        }
+
+        List<Hit> hits = new ArrayList<>(top);
+        hits.sort(order.reversed());
+
+        List<SearchResultJSON> results = new ArrayList<>(hits.size());
+        for (Hit hit : hits) {
+            SearchResultJSON r = new SearchResultJSON();
+            r.type = hit.posting().doc().kind().name().toLowerCase(Locale.ROOT);
+            r.id = hit.posting().doc().id();
+            r.field = hit.posting().field();
+            r.value = hit.posting().value();
+            r.score = Math.round(hit.score() * 100) / 100.0;
+            results.add(r);
+        }
+        return results;
+    }
+
+    //-------------- INTERNALS (write lock held) --------------
+
+    private void add(Doc doc, String field, String value) {
+        if (value == null || value.isBlank()) return;
+
+        Posting posting = new Posting(doc, field, value, normalize(value));
+        docs.computeIfAbsent(doc, d -> new ArrayList<>()).add(posting);
+
+        for (String term : termsOf(posting.normalized())) {
+            Set<Posting> postings = terms.get(term);
+            if (postings == null) {
+                postings = new HashSet<>();
+                terms.put(term, postings);
+                Set<String> termGrams = trigrams(term);
+                gramCounts.put(term, termGrams.size());
+                for (String g : termGrams) {
+                    grams.computeIfAbsent(g, k -> new HashSet<>()).add(term);
+                }
+            }
+            postings.add(posting);
+        }
+    }
+
+    private void remove(Doc doc) {
+        List<Posting> postings = docs.remove(doc);
+        if (postings == null) return;
+
+        for (Posting posting : postings) {
+            for (String term : termsOf(posting.normalized())) {
+                Set<Posting> set = terms.get(term);
+                if (set == null) continue;
+
+                set.remove(posting);
+                if (set.isEmpty()) {
+                    terms.remove(term);
+                    gramCounts.remove(term);
+                    for (String g : trigrams(term)) {
+                        Set<String> t = grams.get(g);
+                        if (t == null) continue;
+                        t.remove(term);
+                        if (t.isEmpty()) grams.remove(g);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void offer(Map<Doc, Hit> best, Posting posting, double score) {
+        Hit current = best.get(posting.doc());
+        if (current == null || current.score() < score) {
+            best.put(posting.doc(), new Hit(posting, score));
+        }
+    }
+
+    private static String normalize(String value) {
+        return value == null ? "" : value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    // the whole value and each of its words ("air france" -> air france, air, france)
+    private static Set<String> termsOf(String normalized) {
+        Set<String> result = new HashSet<>();
+        result.add(normalized);
+        for (String word : normalized.split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) result.add(word);
+        }
+        return result;
+    }
+
+    private static Set<String> trigrams(String term) {
+        String padded = "$" + term + "$";
+        Set<String> result = new HashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            result.add(padded.substring(i, i + 3));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,105 @@
+package ch.heigvd.store;
+
+import ch.heigvd.controller.MutexAPI;
+import ch.heigvd.history.FleetHistories;
+import ch.heigvd.persistence.WriteBehind;
+import ch.heigvd.profiling.ProfiledLock;
+import ch.heigvd.types.CompanyJSON;
+import ch.heigvd.views.SortedView;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Brief :
+ * one partition of the companies (hash of companyICAO), with its own lock,
+ * its own presorted views, its own fleet history and its own JSON files.
+ *  every method except the constructor requires the lock
+ **/
+public final class CompanyShard {
+
+    public final int index;
+    public final String path;
+    public final String historyPath;
+    public final String historyLogPath;
+    public final Lock lock = new ProfiledLock(new ReentrantLock());
+
+    private final List<CompanyJSON> companies = new ArrayList<>();
+    // global insertion number, order of the listing without sort
+    private final Map<CompanyJSON, Long> sequence = new IdentityHashMap<>();
+    private final FleetHistories history;
+
+    // presorted companies for each sort parameter [companyICAO | name | country | fleetSize]
+    private final Map<String, SortedView<CompanyJSON, ?>> views = Map.of(
+            "companyICAO", new SortedView<CompanyJSON, String>(cmp -> cmp.companyICAO == null ? "" : cmp.companyICAO.toLowerCase()),
+            "name", new SortedView<CompanyJSON, String>(cmp -> cmp.name == null ? "" : cmp.name.toLowerCase()),
+            "country", new SortedView<CompanyJSON, String>(cmp -> cmp.country == null ? "" : cmp.country.toLowerCase()),
+            "fleetSize", new SortedView<CompanyJSON, Integer>(CompanyStore::fleetSize)
+    );
+
+    CompanyShard(int index, String path, String historyPath, String historyLogPath) {
+        this.index = index;
+        this.path = path;
+        this.historyPath = historyPath;
+        this.historyLogPath = historyLogPath;
+        this.history = new FleetHistories(historyPath, historyLogPath);
+    }
+
+    // read only, modify with add / remove / fleetChanged
+    public List<CompanyJSON> companies() {
+        return companies;
+    }
+
+    public CompanyJSON find(String companyICAO) {
+        for (CompanyJSON company : companies) {
+            if (company.companyICAO.equalsIgnoreCase(companyICAO)) return company;
+        }
+        return null;
+    }
+
+    public void add(CompanyJSON company) {
+        companies.add(company);
+        sequence.put(company, CompanyStore.nextSequence());
+        views.values().forEach(v -> v.add(company));
+    }
+
+    public void remove(CompanyJSON company) {
+        companies.remove(company);
+        sequence.remove(company);
+        views.values().forEach(v -> v.remove(company));
+    }
+
+    // the fleet of the company changed in place
+    public void fleetChanged(CompanyJSON company) {
+        views.get("fleetSize").update(company);
+    }
+
+    public SortedView<CompanyJSON, ?> view(String field) {
+        return views.get(field);
+    }
+
+    public long sequence(CompanyJSON company) {
+        return sequence.get(company);
+    }
+
+    // fleet changes of the companies, recorded by the controller
+    public FleetHistories history() {
+        return history;
+    }
+
+    // schedule the rewrite of the files of this shard
+    public CompletableFuture<Void> persist() {
+        MutexAPI.DATA_VERSION.incrementAndGet();
+        CompletableFuture<Void> flush = WriteBehind.schedule(path, lock, this::companies);
+        if (!history.hasWrite()) return flush;
+
+        // same flush or a later one, the flushes complete in order
+        // the history is part of the same change, not counted twice in the metrics
+        return WriteBehind.schedule(historyLogPath, lock, history::prepare, false);
+    }
+}
@@ -0,0 +1,216 @@
+package ch.heigvd.store;
+
+import ch.heigvd.Config;
+import ch.heigvd.history.FleetHistories;
+import ch.heigvd.history.FleetHistory;
+import ch.heigvd.profiling.Phase;
+import ch.heigvd.profiling.Profiler;
+import ch.heigvd.types.CompanyJSON;
+import ch.heigvd.views.SortedView;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Brief :
+ * the companies, partitioned in AIRAPI_COMPANY_SHARDS shards by a hash of
+ * companyICAO. Mutations lock only the shard of their company, the listings
+ * are answered by scatter-gather over every shard.
+ *  the shard count of the files is changed offline with Reshard
+ *
+ *  order without sort : insertion order, the companies read at startup are
+ *  numbered file by file (shard 0 first). With one shard it is the order of
+ *  company.json, after a Reshard it is the order of the new shard files and
+ *  not the order of the old layout.
+ **/
+public final class CompanyStore {
+    private CompanyStore() {}
+
+    public static final int SHARD_COUNT = Math.max(1, Config.getInt("AIRAPI_COMPANY_SHARDS", 1));
+
+    public static final Set<String> SORT_FIELDS = Set.of("companyICAO", "name", "country", "fleetSize");
+
+    // one sort criteria of a listing
+    public record Sort(String field, boolean descending) {}
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private static final CompanyShard[] SHARDS = load();
+
+    public static CompanyShard shardFor(String companyICAO) {
+        return SHARDS[ShardLayout.shardIndex(companyICAO, SHARD_COUNT)];
+    }
+
+    public static List<CompanyShard> shards() {
+        return List.of(SHARDS);
+    }
+
+    public static int fleetSize(CompanyJSON company) {
+        if (company == null || company.fleet == null || company.fleet.isEmpty()) return 0;
+        return company.fleet.stream().mapToInt(t -> t.quantity).sum();
+    }
+
+    static long nextSequence() {
+        return SEQUENCE.incrementAndGet();
+    }
+
+    //-------------- SCATTER-GATHER LISTING --------------
+
+    // a serialized company, its sort keys and its insertion number
+    private record Row(Object[] keys, long sequence, byte[] json) {}
+
+    /**
+     * JSON array of the companies matching the filter, sorted.
+     * scatter : each shard filters, sorts (views) and serializes under its own lock
+     * gather  : merge of the sorted runs of each shard
+     **/
+    public static byte[] list(Predicate<CompanyJSON> filter, List<Sort> sorts, ObjectWriter writer) {
+        List<Row> rows = new ArrayList<>();
+
+        for (CompanyShard shard : SHARDS) {
+            shard.lock.lock();
+            try {
+                long start = Profiler.start();
+                List<CompanyJSON> list;
+                if (sorts.isEmpty()) {
+                    list = shard.companies().stream().filter(filter).toList();
+                } else {
+                    List<SortedView.Order<CompanyJSON>> orders = new ArrayList<>();
+                    for (Sort sort : sorts) {
+                        orders.add(new SortedView.Order<>(shard.view(sort.field()), sort.descending()));
+                    }
+                    list = SortedView.collect(orders, filter);
+                }
+                Profiler.record(Phase.FILTER_SORT, start);
+
+                start = Profiler.start();
+                for (CompanyJSON company : list) {
+                    Object[] keys = new Object[Math.max(1, sorts.size())];
+                    if (sorts.isEmpty()) {
+                        keys[0] = shard.sequence(company);
+                    } else {
+                        for (int i = 0; i < sorts.size(); i++) {
+                            keys[i] = shard.view(sorts.get(i).field()).key(company);
+                        }
+                    }
+                    rows.add(new Row(keys, shard.sequence(company), writer.writeValueAsBytes(company)));
+                }
+                Profiler.record(Phase.SERIALIZE, start);
+            } catch (JsonProcessingException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+
+        // the rows of each shard are already sorted, TimSort only merges these runs
+        long start = Profiler.start();
+        if (SHARD_COUNT > 1) rows.sort(rowComparator(sorts));
+        Profiler.record(Phase.FILTER_SORT, start);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('[');
+        for (int i = 0; i < rows.size(); i++) {
+            if (i > 0) out.write(',');
+            out.writeBytes(rows.get(i).json());
+        }
+        out.write(']');
+        return out.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Comparator<Row> rowComparator(List<Sort> sorts) {
+        return (a, b) -> {
+            for (int i = 0; i < a.keys().length; i++) {
+                int c = ((Comparable<Object>) a.keys()[i]).compareTo(b.keys()[i]);
+                if (c != 0) return (!sorts.isEmpty() && sorts.get(i).descending()) ? -c : c;
+            }
+            // equal keys : insertion order, same as the listing without sort
+            return Long.compare(a.sequence(), b.sequence());
+        };
+    }
+
+    //-------------- FILES --------------
+
+    public static List<CompanyJSON> read(String filename) {
+        ObjectMapper mapper = new ObjectMapper();
+        long start = Profiler.start();
+
+        try(Reader reader = new FileReader(filename, StandardCharsets.UTF_8);
+            BufferedReader companyJSON = new BufferedReader(reader)) {
+            return mapper.readValue(companyJSON, new TypeReference<>(){});
+        } catch (IOException e) {
+            System.err.println("Error reading : " + filename + e);
+            return List.of();
+        } finally {
+            Profiler.record(Phase.READ, start);
+        }
+    }
+
+    private static CompanyShard[] load() {
+        CompanyShard[] shards = new CompanyShard[SHARD_COUNT];
+        boolean found = false;
+
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            shards[i] = new CompanyShard(i, ShardLayout.path(i, SHARD_COUNT),
+                    ShardLayout.historyPath(i, SHARD_COUNT), ShardLayout.historyLogPath(i, SHARD_COUNT));
+            found |= Files.exists(Path.of(shards[i].path));
+        }
+
+        // the files have another shard count, starting empty would hide the companies
+        if (!found && SHARD_COUNT > 1 && Files.exists(Path.of(ShardLayout.LEGACY_FILEPATH))) {
+            throw new IllegalStateException("No company file for " + SHARD_COUNT + " shards, run : "
+                    + "java -cp api.jar ch.heigvd.store.Reshard 1 " + SHARD_COUNT);
+        }
+
+        boolean misplaced = false;
+        for (CompanyShard shard : shards) {
+            if (Files.exists(Path.of(shard.path))) {
+                for (CompanyJSON company : read(shard.path)) {
+                    CompanyShard owner = shards[ShardLayout.shardIndex(company.companyICAO, SHARD_COUNT)];
+                    misplaced |= owner != shard;
+                    owner.add(company);
+                }
+            }
+
+            long start = Profiler.start();
+            FleetHistories.Loaded loaded = FleetHistories.read(shard.historyPath, shard.historyLogPath);
+            Profiler.record(Phase.READ, start);
+            shard.history().continueLog(loaded);
+            for (FleetHistory history : loaded.histories()) {
+                CompanyShard owner = shards[ShardLayout.shardIndex(history.companyICAO, SHARD_COUNT)];
+                misplaced |= owner != shard;
+                owner.history().put(history);
+            }
+        }
+
+        // start the history of the companies that have none
+        for (CompanyShard shard : shards) shard.history().load(shard.companies());
+
+        // a file edited by hand, write every company back into its own shard
+        if (misplaced) {
+            for (CompanyShard shard : shards) {
+                shard.history().snapshotNeeded();
+                shard.persist();
+            }
+        }
+        return shards;
+    }
+}
@@ -0,0 +1,129 @@
+package ch.heigvd.store;
+
+import ch.heigvd.history.FleetHistories;
+import ch.heigvd.types.CompanyJSON;
+import ch.heigvd.types.FleetHistoryFileJSON;
+import ch.heigvd.types.FleetHistoryJSON;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Brief :
+ * offline re-sharding of the company files, the API must be stopped.
+ *  java -cp api.jar ch.heigvd.store.Reshard <from shards> <to shards>
+ *  then start the API with AIRAPI_COMPANY_SHARDS=<to shards>
+ *
+ *  the fleet histories follow their company
+ *  the listing without sort follows the new files (shard 0 first), not the old order
+ *  the files of the old layout are kept, delete them once the new one is checked
+ **/
+public final class Reshard {
+    private Reshard() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage : Reshard <from shards> <to shards>");
+            System.exit(2);
+        }
+
+        int from = Integer.parseInt(args[0]);
+        int to = Integer.parseInt(args[1]);
+        if (from <= 0 || to <= 0 || from == to) {
+            System.err.println("Invalid shard counts, they must be positive and different");
+            System.exit(2);
+        }
+
+        ObjectMapper mapper = new ObjectMapper();
+
+        // a wrong <from> would read nothing and overwrite the files with empty lists
+        boolean found = false;
+        for (int i = 0; i < from; i++) {
+            found |= Files.exists(Path.of(ShardLayout.path(i, from)));
+        }
+        if (!found) {
+            System.err.println("No company file for " + from + " shards, nothing written");
+            System.exit(1);
+        }
+
+        // read the old layout
+        List<CompanyJSON> companies = new ArrayList<>();
+        List<FleetHistoryJSON> histories = new ArrayList<>();
+        for (int i = 0; i < from; i++) {
+            read(mapper, ShardLayout.path(i, from), new TypeReference<List<CompanyJSON>>(){}, companies);
+            // snapshot + log of the shard
+            FleetHistories.read(ShardLayout.historyPath(i, from), ShardLayout.historyLogPath(i, from))
+                    .histories().forEach(h -> histories.add(h.toJSON()));
+        }
+
+        if (companies.isEmpty()) {
+            for (int i = 0; i < to; i++) {
+                if (Files.exists(Path.of(ShardLayout.path(i, to)))) {
+                    System.err.println("No company read and " + ShardLayout.path(i, to) + " exists, nothing written");
+                    System.exit(1);
+                }
+            }
+        }
+
+        // distribute into the new one
+        List<List<CompanyJSON>> shards = new ArrayList<>();
+        List<List<FleetHistoryJSON>> historyShards = new ArrayList<>();
+        for (int i = 0; i < to; i++) {
+            shards.add(new ArrayList<>());
+            historyShards.add(new ArrayList<>());
+        }
+        for (CompanyJSON company : companies) {
+            shards.get(ShardLayout.shardIndex(company.companyICAO, to)).add(company);
+        }
+        for (FleetHistoryJSON history : histories) {
+            historyShards.get(ShardLayout.shardIndex(history.companyICAO, to)).add(history);
+        }
+
+        for (int i = 0; i < to; i++) {
+            String path = ShardLayout.path(i, to);
+            write(mapper.writerWithDefaultPrettyPrinter(), path, shards.get(i));
+            // a snapshot without log
+            FleetHistoryFileJSON history = new FleetHistoryFileJSON();
+            history.histories = historyShards.get(i);
+            write(mapper.writer(), ShardLayout.historyPath(i, to), history);
+            write(mapper.writer(), ShardLayout.historyLogPath(i, to), null);
+            System.out.println(path + " : " + shards.get(i).size() + " companies");
+        }
+        System.out.println(companies.size() + " companies moved from " + from + " to " + to + " shards");
+    }
+
+    private static <T> void read(ObjectMapper mapper, String path, TypeReference<List<T>> type, List<T> into) throws IOException {
+        if (!Files.exists(Path.of(path))) return;
+
+        try (Reader reader = new FileReader(path, StandardCharsets.UTF_8);
+             BufferedReader br = new BufferedReader(reader)) {
+            into.addAll(mapper.readValue(br, type));
+        }
+    }
+
+    // temp file then atomic move, an interrupted run never leaves a truncated file
+    // null : empty file
+    private static void write(ObjectWriter writer, String path, Object value) throws IOException {
+        Path target = Path.of(path);
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (Writer out = new FileWriter(tmp.toFile(), StandardCharsets.UTF_8);
+             BufferedWriter bw = new BufferedWriter(out)) {
+            if (value != null) writer.writeValue(bw, value);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
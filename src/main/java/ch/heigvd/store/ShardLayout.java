@@ -0,0 +1,41 @@
+package ch.heigvd.store;
+
+import java.util.Locale;
+
+/**
+ * Brief :
+ * where a company is stored for a given shard count
+ *  1 shard  : the historical company.json
+ *  N shards : company-<i>-of-<N>.json next to it
+ *  the fleet history of the shard : company-history[-<i>-of-<N>].json (snapshot)
+ *  and company-history[-<i>-of-<N>].log (changes since the snapshot)
+ **/
+public final class ShardLayout {
+    private ShardLayout() {}
+
+    public static final String DATA_DIR = "src/main/java/ch/heigvd/datas/";
+    public static final String LEGACY_FILEPATH = DATA_DIR + "company.json";
+
+    // same shard for every case of the ICAO (lookups ignore the case)
+    public static int shardIndex(String companyICAO, int shardCount) {
+        return Math.floorMod(companyICAO.toUpperCase(Locale.ROOT).hashCode(), shardCount);
+    }
+
+    public static String path(int index, int shardCount) {
+        if (shardCount == 1) return LEGACY_FILEPATH;
+        return DATA_DIR + "company-" + index + "-of-" + shardCount + ".json";
+    }
+
+    public static String historyPath(int index, int shardCount) {
+        return historyBase(index, shardCount) + ".json";
+    }
+
+    public static String historyLogPath(int index, int shardCount) {
+        return historyBase(index, shardCount) + ".log";
+    }
+
+    private static String historyBase(int index, int shardCount) {
+        if (shardCount == 1) return DATA_DIR + "company-history";
+        return DATA_DIR + "company-history-" + index + "-of-" + shardCount;
+    }
+}
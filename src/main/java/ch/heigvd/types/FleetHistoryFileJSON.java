@@ -0,0 +1,8 @@
+package ch.heigvd.types;
+
+import java.util.List;
+
+public class FleetHistoryFileJSON {
+    public long sequence;   // last log entry contained in this snapshot
+    public List<FleetHistoryJSON> histories;
+}
@@ -0,0 +1,27 @@
+package ch.heigvd.types;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+public class FleetHistoryJSON {
+    public String companyICAO;
+    public long since;      // epoch ms, the base state is known from this date
+    public boolean exists;  // base state
+    public List<CompanyJSON.AircraftTuple> fleet;
+    public List<Change> changes;
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Change {
+        public long at;         // epoch ms
+        public String event;    // create | delete | fleet
+        public String aircraftICAO;
+        public Integer delta;
+    }
+
+    // one line of the history log
+    public static class Entry extends Change {
+        public long sequence;   // order in the log of the shard
+        public String companyICAO;
+    }
+}
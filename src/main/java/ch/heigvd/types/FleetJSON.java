@@ -0,0 +1,9 @@
+package ch.heigvd.types;
+
+import java.util.List;
+
+public class FleetJSON {
+    public String companyICAO;
+    public String asOf;
+    public List<CompanyJSON.AircraftTuple> fleet;
+}
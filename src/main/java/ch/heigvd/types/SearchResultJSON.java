@@ -0,0 +1,9 @@
+package ch.heigvd.types;
+
+public class SearchResultJSON {
+    public String type;   // avion | company
+    public String id;     // ICAO of the airplane or of the company
+    public String field;  // field that matched
+    public String value;  // value of this field
+    public double score;
+}
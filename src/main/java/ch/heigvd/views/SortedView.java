@@ -0,0 +1,146 @@
+package ch.heigvd.views;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Brief :
+ * values kept sorted by one key, maintained on every insert/update/delete.
+ *  the key is computed once per insert/update (ex: lowercase string) and cached,
+ *  so the sort of a request never allocates
+ *  equal keys keep their insertion order, in both directions : each value has a
+ *  sequence number, kept by update() and replace(), used as tiebreak
+ *
+ *  not thread safe, guarded by the lock of the data it indexes
+ **/
+public final class SortedView<T, K extends Comparable<? super K>> {
+
+    // one sort criteria of a request
+    public record Order<T>(SortedView<T, ?> view, boolean descending) {}
+
+    private record Entry<T, K>(K key, long sequence, T value) {}
+
+    private final Function<T, K> keyOf;
+    private final List<Entry<T, K>> entries = new ArrayList<>();
+    // value -> entry it was inserted with, the value can be modified in place before update()
+    private final Map<T, Entry<T, K>> inserted = new IdentityHashMap<>();
+    private long nextSequence = 0;
+
+    public SortedView(Function<T, K> keyOf) {
+        this.keyOf = keyOf;
+    }
+
+    // added last of its equal keys
+    public void add(T value) {
+        insert(value, nextSequence++);
+    }
+
+    public void remove(T value) {
+        Entry<T, K> entry = inserted.remove(value);
+        if (entry == null) return;
+
+        entries.remove(indexOf(entry.key(), entry.sequence()));
+    }
+
+    // the key of the value may have changed, it keeps its place among equal keys
+    public void update(T value) {
+        replace(value, value);
+    }
+
+    // the new value takes the place of the old one among equal keys
+    public void replace(T old, T value) {
+        Entry<T, K> entry = inserted.get(old);
+        if (entry == null) {
+            add(value);
+            return;
+        }
+        remove(old);
+        insert(value, entry.sequence());
+    }
+
+    public void clear() {
+        entries.clear();
+        inserted.clear();
+    }
+
+    // cached key of a value present in the view
+    public K key(T value) {
+        return inserted.get(value).key();
+    }
+
+    // comparator on the cached keys, only for values present in the view
+    public Comparator<T> comparator() {
+        return (a, b) -> inserted.get(a).key().compareTo(inserted.get(b).key());
+    }
+
+    private void insert(T value, long sequence) {
+        Entry<T, K> entry = new Entry<>(keyOf.apply(value), sequence, value);
+        inserted.put(value, entry);
+        entries.add(indexOf(entry.key(), sequence), entry);
+    }
+
+    /**
+     * Filtered values sorted by the orders. The first order is a walk of its
+     * view, the next ones only sort the values having the same first key.
+     **/
+    public static <T> List<T> collect(List<Order<T>> orders, Predicate<T> filter) {
+        Order<T> primary = orders.get(0);
+
+        Comparator<T> ties = null;
+        for (Order<T> order : orders.subList(1, orders.size())) {
+            Comparator<T> c = order.view().comparator();
+            if (order.descending()) c = c.reversed();
+            ties = (ties == null) ? c : ties.thenComparing(c);
+        }
+
+        return primary.view().walk(primary.descending(), filter, ties);
+    }
+
+    private List<T> walk(boolean descending, Predicate<T> filter, Comparator<T> ties) {
+        List<T> result = new ArrayList<>();
+        int n = entries.size();
+
+        // groups of equal keys, visited in ascending or descending key order
+        int i = descending ? n - 1 : 0;
+        while (descending ? i >= 0 : i < n) {
+            K key = entries.get(i).key();
+            int lo = i;
+            int hi = i;
+            if (descending) {
+                while (lo > 0 && entries.get(lo - 1).key().compareTo(key) == 0) lo--;
+                i = lo - 1;
+            } else {
+                while (hi < n - 1 && entries.get(hi + 1).key().compareTo(key) == 0) hi++;
+                i = hi + 1;
+            }
+
+            int start = result.size();
+            for (int j = lo; j <= hi; j++) {
+                T value = entries.get(j).value();
+                if (filter.test(value)) result.add(value);
+            }
+            if (ties != null && result.size() - start > 1) {
+                result.subList(start, result.size()).sort(ties);
+            }
+        }
+        return result;
+    }
+
+    // first index with (key, sequence) >= (key, sequence), entries are sorted by both
+    private int indexOf(K key, long sequence) {
+        int lo = 0, hi = entries.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            Entry<T, K> e = entries.get(mid);
+            int c = e.key().compareTo(key);
+            if (c == 0) c = Long.compare(e.sequence(), sequence);
+            if (c < 0) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+}